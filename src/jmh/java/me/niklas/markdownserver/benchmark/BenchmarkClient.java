@@ -0,0 +1,71 @@
+package me.niklas.markdownserver.benchmark;
+
+import me.niklas.markdownserver.MarkdownConfig;
+import me.niklas.markdownserver.web.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts an embedded server on a corpus and sends plain HTTP requests to it, over a real socket.
+ * The session of the default master user is written to sessions.properties before the start,
+ * so no password has to be hashed and the default admin-only mode lets it through.
+ */
+public class BenchmarkClient {
+
+    private static final String SESSION = "BenchmarkSession0000000000000000";
+
+    private final byte[] buffer = new byte[64 * 1024];
+    private final Server server;
+    private final String base;
+
+    /**
+     * @param root The root directory of the corpus. sessions.properties and the resources folder are created in it.
+     * @throws IOException If the files can not be written.
+     */
+    public BenchmarkClient(File root) throws IOException {
+        Corpus.write(new File(root, "sessions.properties"), SESSION + " = 127.0.0.1`masterUser`" + System.currentTimeMillis() + "\n");
+        File resources = new File(root, "resources");
+        if (!resources.isDirectory() && !resources.mkdir()) throw new IOException("Can not create " + resources);
+
+        MarkdownConfig.HOST = "127.0.0.1";
+        MarkdownConfig.PORT = 0; //Any free port, the server writes the actual one back
+        MarkdownConfig.LIVE_RELOAD = false;
+        MarkdownConfig.COOKIE_AGE = TimeUnit.DAYS.toMillis(1);
+
+        server = new Server(root);
+        server.run();
+        base = "http://127.0.0.1:" + MarkdownConfig.PORT;
+    }
+
+    /**
+     * @param path  The path, including the query string.
+     * @param login Whether the session cookie is sent.
+     * @param gzip  Whether gzip is accepted.
+     * @return The status code plus the number of bytes read, so nothing can be optimized away.
+     * @throws IOException If the request fails.
+     */
+    public int get(String path, boolean login, boolean gzip) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        if (login) connection.setRequestProperty("Cookie", "login-id=" + SESSION);
+        if (gzip) connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        int status = connection.getResponseCode();
+        int read = 0;
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in == null) return status;
+            int count;
+            while ((count = in.read(buffer)) != -1) read += count;
+        }
+        return status + read;
+    }
+
+    public void stop() {
+        server.stop();
+    }
+}
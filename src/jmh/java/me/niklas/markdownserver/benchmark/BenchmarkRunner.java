@@ -0,0 +1,26 @@
+package me.niklas.markdownserver.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of target/benchmarks.jar. Accepts all JMH options, but writes JSON to target/jmh-result-VERSION.json
+ * unless -rf or -rff are given, so the results of different versions can be compared.
+ * The version is taken from -Dbenchmark.version, e.g. a commit hash.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+
+        if (!commandLine.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue()) {
+            options.result("target/jmh-result-" + System.getProperty("benchmark.version", "current") + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+}
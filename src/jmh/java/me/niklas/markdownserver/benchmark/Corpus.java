@@ -0,0 +1,183 @@
+package me.niklas.markdownserver.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Writes markdown trees for the benchmarks. The content only depends on the seed, so runs can be compared.
+ */
+public class Corpus {
+
+    static final int FILES_PER_FOLDER = 100;
+
+    /**
+     * Creates page-0 to page-(files - 1), 100 per folder: /folder-0/page-0 ... /folder-1/page-100 ...
+     *
+     * @param files The number of files.
+     * @return The temporary root directory.
+     * @throws IOException If a file can not be written.
+     */
+    public static File create(int files) throws IOException {
+        File root = Files.createTempDirectory("markdown-corpus").toFile();
+        Random random = new Random(files);
+        for (int i = 0; i < files; i++) {
+            File folder = new File(root, "folder-" + i / FILES_PER_FOLDER);
+            if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Can not create " + folder);
+            write(new File(folder, "page-" + i + ".md"), markdown(random, 8));
+        }
+        return root;
+    }
+
+    /**
+     * Creates a tree that looks like a real documentation: sections with topics with chapters, 50 files per chapter.
+     * The first file of every chapter lies one level higher, in the topic, and every topic has a .mdIndex
+     * pointing to its first chapter. Folder names contain spaces and capitals, like the ones people create.
+     * Every 200th file is large (about 250 KB), all others have 2 to 16 sections.
+     *
+     * @param files The number of files.
+     * @return The tree with the urls of its pages and folders.
+     * @throws IOException If a file can not be written.
+     */
+    public static Tree tree(int files) throws IOException {
+        Tree tree = new Tree(Files.createTempDirectory("markdown-tree").toFile());
+        Random random = new Random(files);
+        for (int i = 0; i < files; i++) {
+            int chapter = i / 50;
+            String topicPath = "Bereich " + chapter / 25 + "/Thema " + chapter / 5;
+            String folderPath = i % 50 == 0 ? topicPath : topicPath + "/Kapitel " + chapter;
+            File folder = new File(tree.root, folderPath);
+            if (!folder.isDirectory()) {
+                if (!folder.mkdirs()) throw new IOException("Can not create " + folder);
+                if (i % 50 != 0) tree.folders.add(toUrl(folderPath));
+            }
+            if (chapter % 5 == 0 && i % 50 == 0) { //The first file of a topic
+                write(new File(tree.root, topicPath + "/.mdIndex"), toUrl(topicPath + "/Kapitel " + chapter) + "\n");
+                tree.indexed.add(toUrl(topicPath));
+            }
+
+            String name = "Seite " + i;
+            boolean large = i % 200 == 199;
+            write(new File(folder, name + ".md"), markdown(random, large ? 400 : 2 + random.nextInt(15)));
+            (large ? tree.large : tree.pages).add(toUrl(folderPath + "/" + name));
+        }
+        return tree;
+    }
+
+    private static String toUrl(String path) {
+        return ("/" + path).replace(" ", "-").toLowerCase(); //Like MarkdownFile and MarkdownFilesManager build them
+    }
+
+    /**
+     * @param file The url of this file in a corpus created by {@link #create(int)}.
+     */
+    public static String url(int file) {
+        return "/folder-" + file / FILES_PER_FOLDER + "/page-" + file;
+    }
+
+    /**
+     * @param random     The source of all decisions.
+     * @param paragraphs The number of sections, every section has a heading, text, a list and now and then a table.
+     * @return The markdown.
+     */
+    public static String markdown(Random random, int paragraphs) {
+        StringBuilder builder = new StringBuilder("# Page ").append(random.nextInt(100000)).append("\n\n");
+        for (int i = 0; i < paragraphs; i++) {
+            builder.append("## Section ").append(i).append("\n\n");
+            for (int sentence = 0; sentence < 5; sentence++) {
+                for (int word = 0; word < 12; word++) builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                builder.append(random.nextInt(4) == 0 ? "**wichtig**. " : ". ");
+            }
+            builder.append("\n\n");
+
+            for (int item = 0; item < 4; item++) {
+                builder.append("- ").append(WORDS[random.nextInt(WORDS.length)]).append(" [Link](/folder-0/page-").append(random.nextInt(100)).append(")\n");
+            }
+            builder.append('\n');
+
+            if (i % 3 == 0) {
+                builder.append("| Name | Wert | Beschreibung |\n|---|---|---|\n");
+                for (int row = 0; row < 6; row++) {
+                    builder.append("| ").append(WORDS[random.nextInt(WORDS.length)]).append(" | ").append(random.nextInt(1000))
+                            .append(" | ").append(WORDS[random.nextInt(WORDS.length)]).append(" |\n");
+                }
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    public static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deletes the directory and everything in it.
+     */
+    public static void delete(File root) throws IOException {
+        if (root == null || !root.exists()) return;
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * A corpus created by {@link #tree(int)}.
+     */
+    public static class Tree {
+
+        private final File root;
+        private final List<String> pages = new ArrayList<>();
+        private final List<String> large = new ArrayList<>();
+        private final List<String> folders = new ArrayList<>();
+        private final List<String> indexed = new ArrayList<>();
+
+        private Tree(File root) {
+            this.root = root;
+        }
+
+        public File getRoot() {
+            return root;
+        }
+
+        /**
+         * @return The urls of all normal sized pages.
+         */
+        public List<String> getPages() {
+            return Collections.unmodifiableList(pages);
+        }
+
+        /**
+         * @return The urls of all large pages.
+         */
+        public List<String> getLarge() {
+            return Collections.unmodifiableList(large);
+        }
+
+        /**
+         * @return The urls of the chapters, which show a folder overview.
+         */
+        public List<String> getFolders() {
+            return Collections.unmodifiableList(folders);
+        }
+
+        /**
+         * @return The urls of the topics, which redirect because of their index file.
+         */
+        public List<String> getIndexed() {
+            return Collections.unmodifiableList(indexed);
+        }
+    }
+
+    private static final String[] WORDS = {"Markdown", "Server", "Datei", "Ordner", "Seite", "Tabelle", "Liste", "Text",
+            "schnell", "einfach", "privat", "Notiz", "Übersicht", "Zugriff", "Benutzer", "Sitzung", "Anmeldung",
+            "Inhalt", "Verzeichnis", "Suche", "Ergebnis", "Version", "Änderung", "lesen", "schreiben", "rendern"};
+}
@@ -0,0 +1,82 @@
+package me.niklas.markdownserver.benchmark;
+
+import me.niklas.markdownserver.MarkdownFile;
+import me.niklas.markdownserver.fs.MarkdownFilesManager;
+import me.niklas.markdownserver.util.MarkdownComparator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding files and folders in the index, and sorting them, at different corpus sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    private File root;
+    private MarkdownFilesManager manager;
+    private String[] urls;
+    private List<MarkdownFile> shuffled;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Corpus.create(files);
+        manager = new MarkdownFilesManager(root);
+        manager.rescan();
+
+        urls = new String[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < urls.length; i++) urls[i] = Corpus.url(random.nextInt(files));
+
+        shuffled = new ArrayList<>(manager.getFolderOverview("/"));
+        Collections.shuffle(shuffled, random);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Corpus.delete(root);
+    }
+
+    @Benchmark
+    public Optional<MarkdownFile> getFile() {
+        return manager.getFile(urls[next++ & 1023]);
+    }
+
+    @Benchmark
+    public Optional<MarkdownFile> getMissingFile() {
+        return manager.getFile("/folder-0/missing");
+    }
+
+    @Benchmark
+    public List<MarkdownFile> getFolderOverview() {
+        return manager.getFolderOverview("/folder-" + (next++ % (files / Corpus.FILES_PER_FOLDER)));
+    }
+
+    @Benchmark
+    public List<MarkdownFile> getRootOverview() {
+        return manager.getFolderOverview("/");
+    }
+
+    @Benchmark
+    public List<MarkdownFile> sortWithComparator() {
+        List<MarkdownFile> copy = new ArrayList<>(shuffled);
+        copy.sort(new MarkdownComparator());
+        return copy;
+    }
+}
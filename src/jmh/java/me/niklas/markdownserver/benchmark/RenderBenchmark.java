@@ -0,0 +1,60 @@
+package me.niklas.markdownserver.benchmark;
+
+import me.niklas.markdownserver.MarkdownFile;
+import me.niklas.markdownserver.RenderCache;
+import me.niklas.markdownserver.RenderResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, parsing and rendering one file, without and with the render cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private File root;
+    private MarkdownFile file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int paragraphs = size.equals("small") ? 2 : size.equals("medium") ? 80 : 3000; //About 1 KB, 50 KB and 2 MB
+        root = Corpus.create(0);
+        File source = new File(root, "document.md");
+        Corpus.write(source, Corpus.markdown(new Random(paragraphs), paragraphs));
+        file = new MarkdownFile(source, root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        RenderCache.getInstance().invalidate(file);
+        Corpus.delete(root);
+    }
+
+    @Benchmark
+    public RenderResult render() {
+        RenderCache.getInstance().invalidate(file); //Forces the whole path: read, decode, parse, render, compress
+        return file.getResult();
+    }
+
+    @Benchmark
+    public RenderResult cached() {
+        return file.getResult();
+    }
+
+    @Benchmark
+    public CharSequence readSource() {
+        return file.readSource();
+    }
+}
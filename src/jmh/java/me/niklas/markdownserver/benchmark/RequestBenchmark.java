@@ -0,0 +1,67 @@
+package me.niklas.markdownserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete requests against an embedded server on a random port, see {@link BenchmarkClient}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+    private File root;
+    private BenchmarkClient client;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Corpus.create(1000);
+        client = new BenchmarkClient(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.stop();
+        Corpus.delete(root);
+    }
+
+    @Benchmark
+    public int page() throws IOException {
+        return client.get("/folder-0/page-1", true, true);
+    }
+
+    @Benchmark
+    public int pageIdentity() throws IOException {
+        return client.get("/folder-0/page-1", true, false);
+    }
+
+    @Benchmark
+    public int folderOverview() throws IOException {
+        return client.get("/folder-3", true, true);
+    }
+
+    /**
+     * The smallest route behind the login check, mostly the cost of the filter.
+     */
+    @Benchmark
+    public int authenticatedRoute() throws IOException {
+        return client.get("/adminonly/toggletext", true, false);
+    }
+
+    @Benchmark
+    public int redirectToLogin() throws IOException {
+        return client.get("/folder-0/page-1", false, false);
+    }
+
+    @Benchmark
+    public int staticAsset() throws IOException {
+        return client.get("/style.css", false, true);
+    }
+}
@@ -0,0 +1,159 @@
+package me.niklas.markdownserver.benchmark;
+
+import me.niklas.markdownserver.MarkdownConfig;
+import me.niklas.markdownserver.fs.MarkdownFilesManager;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shows how the server grows with the corpus. For every size a tree is generated with {@link Corpus#tree(int)}, then:
+ * <ul>
+ * <li>the first and a second (unchanged) {@link MarkdownFilesManager#rescan()} are timed,</li>
+ * <li>the heap retained by the index is measured after a full GC,</li>
+ * <li>representative requests are sent to an embedded server and their latency is recorded,</li>
+ * </ul>
+ * each phase with the number and time of garbage collections. Not a JMH benchmark, one run per size is enough
+ * to see the growth and retained heap can not be measured inside JMH.
+ * <p>
+ * Usage: java -cp target/benchmarks.jar me.niklas.markdownserver.benchmark.ScalingSuite [sizes...]
+ * <br>The sizes default to 1000 10000 100000, -Dscaling.requests sets the requests per kind (default 200),
+ * -Dscaling.result the JSON file (default target/scaling-result.json).
+ */
+public class ScalingSuite {
+
+    private static final int REQUESTS = Integer.getInteger("scaling.requests", 200);
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[]{1000, 10000, 100000} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        MarkdownConfig.WARMUP = 0; //Requests should find cold pages, like after a restart
+
+        JSONArray results = new JSONArray();
+        for (int size : sizes) {
+            JSONObject result = run(size);
+            results.put(result);
+            System.out.println(result.toString(2));
+        }
+
+        File out = new File(System.getProperty("scaling.result", "target/scaling-result.json"));
+        if (out.getParentFile() != null && !out.getParentFile().isDirectory() && !out.getParentFile().mkdirs())
+            throw new IOException("Can not create " + out.getParentFile());
+        Files.write(out.toPath(), results.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Written to " + out.getAbsolutePath());
+        System.exit(0); //The servers and their background threads are not meant to be stopped completely
+    }
+
+    private static JSONObject run(int size) throws Exception {
+        JSONObject result = new JSONObject().put("documents", size);
+        long start = System.nanoTime();
+        Corpus.Tree tree = Corpus.tree(size);
+        result.put("generateMillis", (System.nanoTime() - start) / 1000000);
+
+        long heapBefore = usedHeap();
+        Gc gc = new Gc();
+        MarkdownFilesManager manager = new MarkdownFilesManager(tree.getRoot());
+        start = System.nanoTime();
+        manager.rescan();
+        long firstScan = System.nanoTime() - start;
+        start = System.nanoTime();
+        manager.rescan();
+        long secondScan = System.nanoTime() - start;
+        result.put("rescan", gc.put(new JSONObject()
+                .put("firstMillis", firstScan / 1000000.0)
+                .put("unchangedMillis", secondScan / 1000000.0)));
+
+        long retained = usedHeap() - heapBefore;
+        if (manager.getFolderOverview("/").size() != size) throw new IllegalStateException("The index is incomplete"); //Also keeps the manager reachable until here
+        result.put("retainedHeapBytes", retained).put("retainedBytesPerDocument", retained / size);
+
+        BenchmarkClient client = new BenchmarkClient(tree.getRoot());
+        try {
+            Random random = new Random(size);
+            gc = new Gc();
+            JSONObject requests = new JSONObject();
+            requests.put("page", measure(client, tree.getPages(), random));
+            requests.put("largePage", measure(client, tree.getLarge(), random));
+            requests.put("folderOverview", measure(client, tree.getFolders(), random));
+            requests.put("indexRedirect", measure(client, tree.getIndexed(), random));
+            requests.put("sitemap", measure(client, "/sitemap", random));
+            requests.put("search", measure(client, "/search?q=tabelle+inhalt", random));
+            requests.put("notFound", measure(client, "/wp-admin/setup-config.php", random));
+            result.put("requests", gc.put(requests));
+        } finally {
+            client.stop();
+            Corpus.delete(tree.getRoot());
+        }
+        return result;
+    }
+
+    private static JSONObject measure(BenchmarkClient client, String path, Random random) throws IOException {
+        return measure(client, Collections.singletonList(path), random);
+    }
+
+    /**
+     * Sends a tenth of the requests as warmup, then the measured ones, each to a random path of the list.
+     *
+     * @return Mean, median, 99th percentile and maximum in microseconds.
+     */
+    private static JSONObject measure(BenchmarkClient client, List<String> paths, Random random) throws IOException {
+        if (paths.isEmpty()) return new JSONObject();
+        for (int i = 0; i < REQUESTS / 10; i++) client.get(paths.get(random.nextInt(paths.size())), true, true);
+
+        long[] times = new long[REQUESTS];
+        for (int i = 0; i < times.length; i++) {
+            String path = paths.get(random.nextInt(paths.size()));
+            long start = System.nanoTime();
+            int status = client.get(path, true, true);
+            times[i] = System.nanoTime() - start;
+            if (status < 200) throw new IOException("No response for " + path);
+        }
+        Arrays.sort(times);
+        return new JSONObject()
+                .put("meanMicros", Arrays.stream(times).average().orElse(0) / 1000)
+                .put("p50Micros", times[times.length / 2] / 1000.0)
+                .put("p99Micros", times[Math.min(times.length - 1, times.length * 99 / 100)] / 1000.0)
+                .put("maxMicros", times[times.length - 1] / 1000.0);
+    }
+
+    /**
+     * @return The used heap after a full collection, as far as System.gc() can promise one.
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The collections of all collectors since its creation.
+     */
+    private static class Gc {
+
+        private final long count = count();
+        private final long time = time();
+
+        private JSONObject put(JSONObject target) {
+            return target.put("gcCount", count() - count).put("gcMillis", time() - time);
+        }
+
+        private static long count() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private static long time() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package me.niklas.markdownserver.benchmark;
+
+import me.niklas.markdownserver.configuration.SessionsManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The session lookup done by every request, and creating sessions like a login does (without the password hash).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+
+    @Param({"100", "10000"})
+    public int sessions;
+
+    private File root;
+    private SessionsManager manager;
+    private String[] ids;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("markdown-sessions").toFile();
+        manager = new SessionsManager(root);
+        ids = new String[sessions];
+        for (int i = 0; i < sessions; i++) ids[i] = manager.createSession("127.0.0.1", "user" + i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Corpus.delete(root);
+    }
+
+    @Benchmark
+    public boolean hasSession() {
+        return manager.hasSession(ids[next++ % sessions]);
+    }
+
+    @Benchmark
+    public boolean hasMissingSession() {
+        return manager.hasSession("00000000000000000000000000000000");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean hasSessionContended() {
+        return manager.hasSession(ids[(int) (Thread.currentThread().getId() % sessions)]);
+    }
+
+    @Benchmark
+    public String createSession() {
+        return manager.createSession("127.0.0.1", "benchmark");
+    }
+}
@@ -4,7 +4,13 @@ import com.vladsch.flexmark.ext.tables.TablesExtension;
 import com.vladsch.flexmark.parser.Parser;
 import com.vladsch.flexmark.util.data.MutableDataSet;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * Created by Niklas on 14.10.2019 in markdownserver
@@ -19,8 +25,44 @@ public class MarkdownConfig {
     public static String ROOT = "/index.html";
     public static boolean LIVE_RELOAD = true;
     public static long COOKIE_AGE = 2592000;
+    public static long RENDER_CACHE_SIZE = 256; //Megabytes
+    public static int WARMUP = 0; //Files rendered ahead of time: 0 none, -1 all, otherwise the most recently used ones
+    public static int LOGIN_ATTEMPTS = 10; //Per minute and IP address
+    public static int MIN_THREADS = 8; //Request threads kept alive
+    public static int MAX_THREADS = 200;
+    public static int THREAD_IDLE_TIMEOUT = 60000; //Milliseconds until an idle thread above the minimum ends
+    public static int ACCEPTORS = -1; //-1 lets Jetty choose
+    public static int SELECTORS = -1;
+    public static int REQUEST_QUEUE = 0; //Requests waiting for a thread, 0 is unbounded
+    public static boolean VIRTUAL_THREADS = false; //One virtual thread per request instead of the pool, needs Java 21
+    public static Set<String> TRUSTED_PROXIES = new HashSet<>(Arrays.asList("127.0.0.1", "0:0:0:0:0:0:0:1")); //May set X-Forwarded-For
+    public static boolean OFF_HEAP_PAGES = false; //Rendered pages are kept encoded in direct buffers outside the heap
+    private static String optionsTag;
 
     static {
         OPTIONS.set(Parser.EXTENSIONS, Collections.singletonList(TablesExtension.create()));
     }
+
+    /**
+     * @return A short tag which changes whenever the render options change. Used as part of the validators sent to the client.
+     */
+    public static String getOptionsTag() {
+        if (optionsTag != null) return optionsTag;
+        StringBuilder builder = new StringBuilder();
+
+        OPTIONS.getAll().entrySet().stream()
+                .sorted(Comparator.comparing(entry -> entry.getKey().getName()))
+                .forEach(entry -> {
+                    builder.append(entry.getKey().getName()).append('=');
+                    if (entry.getValue() instanceof Iterable) { //Extensions do not implement toString()
+                        ((Iterable<?>) entry.getValue()).forEach(value -> builder.append(value.getClass().getName()).append(','));
+                    } else builder.append(entry.getValue());
+                    builder.append(';');
+                });
+
+        CRC32 crc = new CRC32();
+        crc.update(builder.toString().getBytes(StandardCharsets.UTF_8));
+        optionsTag = Long.toHexString(crc.getValue());
+        return optionsTag;
+    }
 }
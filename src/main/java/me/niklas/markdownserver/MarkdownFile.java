@@ -1,7 +1,9 @@
 package me.niklas.markdownserver;
 
+import com.vladsch.flexmark.ast.Heading;
 import com.vladsch.flexmark.ast.Image;
 import com.vladsch.flexmark.ast.Link;
+import com.vladsch.flexmark.ast.Text;
 import com.vladsch.flexmark.html.AttributeProvider;
 import com.vladsch.flexmark.html.AttributeProviderFactory;
 import com.vladsch.flexmark.html.HtmlRenderer;
@@ -12,12 +14,29 @@ import com.vladsch.flexmark.parser.Parser;
 import com.vladsch.flexmark.util.ast.Document;
 import com.vladsch.flexmark.util.ast.Node;
 import com.vladsch.flexmark.util.html.Attributes;
+import com.vladsch.flexmark.util.sequence.BasedSequenceImpl;
+import me.niklas.markdownserver.util.Histogram;
+import me.niklas.markdownserver.util.Metrics;
+import me.niklas.markdownserver.util.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Function;
 
 /**
  * Created by Niklas on 14.10.2019 in markdownserver
@@ -26,17 +45,23 @@ public class MarkdownFile {
 
     private static final Parser PARSER = Parser.builder(MarkdownConfig.OPTIONS).build();
     private static final HtmlRenderer RENDERER = HtmlRenderer.builder(MarkdownConfig.OPTIONS).attributeProviderFactory(ChangeProvider.Factory()).build();
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final Histogram PARSE_TIME = Metrics.histogram("markdown_parse_duration_seconds", "Time to parse a markdown file");
+    private static final Histogram RENDER_TIME = Metrics.histogram("markdown_render_duration_seconds", "Time to render a parsed markdown file to html");
     private final Logger logger;
     private final File file;
     private final String url;
-    private String content;
-    private String html;
+    private final long lastModified;
+    private final long length;
+    private volatile boolean retired; //No longer part of the index, its results are not cached
 
     public MarkdownFile(File file, File root) {
         Objects.requireNonNull(file);
         Objects.requireNonNull(root);
         logger = LoggerFactory.getLogger("Logger of " + file.getName());
         this.file = file;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
 
         if (!file.getAbsolutePath().startsWith(root.getAbsolutePath())) {
             url = "/error";
@@ -54,46 +79,170 @@ public class MarkdownFile {
         return url;
     }
 
-    private void readContent() {
+    /**
+     * Marks this version as replaced or deleted, see {@link RenderCache#invalidate(MarkdownFile)}.
+     */
+    void retire() {
+        retired = true;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * @return Whether the file on disk still looks like it did when this object was created.
+     */
+    public boolean isCurrent() {
+        return file.lastModified() == lastModified && file.length() == length;
+    }
+
+    /**
+     * Reads the file and hands its bytes to the reader. If a mapped file is truncated while the reader accesses it,
+     * e.g. by an editor rewriting it in place, the access fails with an InternalError (SIGBUS).
+     * The file is then read again without mapping it.
+     */
+    private <T> T read(Function<ByteBuffer, T> reader) {
+        ByteBuffer bytes = readBytes(true);
+        if (!(bytes instanceof MappedByteBuffer)) return reader.apply(bytes);
+        try {
+            return reader.apply(bytes);
+        } catch (InternalError e) {
+            logger.warn("File was truncated while it was read, reading it again");
+            return reader.apply(readBytes(false));
+        }
+    }
+
+    /**
+     * Reads the raw bytes with a single copy. Large files are mapped instead, so they never pass through a heap byte array.
+     * Mapping is skipped on Windows, a mapped file can not be changed or deleted there until the mapping is collected.
+     */
+    private ByteBuffer readBytes(boolean map) {
         if (!file.exists()) {
             logger.error("File does not exist");
-            return;
+            return ByteBuffer.allocate(0);
         }
-        try {
-            StringBuilder builder = new StringBuilder();
-            Files.readAllLines(file.toPath()).forEach(line -> builder.append(line).append("\n"));
-            content = builder.toString().substring(0, builder.toString().length() - 1); //Remove last \n
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (map && size >= MAP_THRESHOLD && !Platform.IS_WINDOWS()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) break; //The file got shorter
+            }
+            buffer.flip();
+            return buffer;
         } catch (Exception e) {
             logger.error("Could not read content", e);
+            return ByteBuffer.allocate(0);
         }
     }
 
-    public String getTitle() {
-        Document doc = getDocument();
+    /**
+     * Decodes the bytes straight into the buffer the parser works on. UTF-8 never needs more chars than bytes,
+     * text with many multi-byte characters is copied into a smaller buffer afterwards.
+     */
+    private CharBuffer decode(ByteBuffer bytes) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        if (chars.remaining() >= chars.capacity() - chars.capacity() / 8) return chars;
+        CharBuffer trimmed = CharBuffer.allocate(chars.remaining()); //More than an eighth would be unused
+        trimmed.put(chars).flip();
+        return trimmed;
+    }
 
-        return doc.getFirstChild().getChars().toString().replace("#", "").trim();
+    /**
+     * Parses the file once and derives everything needed to serve it from that single document.
+     */
+    private RenderResult render() {
+        long lastModified = file.lastModified();
+        Map.Entry<String, CharBuffer> read = read(bytes -> new AbstractMap.SimpleImmutableEntry<>(hash(bytes.duplicate()), decode(bytes)));
+        String etag = read.getKey();
+        CharBuffer content = read.getValue();
+        long start = System.nanoTime();
+        Document doc = PARSER.parse(BasedSequenceImpl.of(content));
+        PARSE_TIME.since(start);
+
+        List<RenderResult.Heading> outline = new ArrayList<>();
+        int words = 0;
+        for (Node node : doc.getDescendants()) {
+            if (node instanceof Heading) {
+                outline.add(new RenderResult.Heading(((Heading) node).getLevel(), ((Heading) node).getText().toString()));
+            } else if (node instanceof Text) {
+                words += countWords(node.getChars());
+            }
+        }
+
+        Node first = doc.getFirstChild();
+        String title = first == null ? file.getName() : first.getChars().toString().replace("#", "").trim();
+        start = System.nanoTime();
+        String html = RENDERER.render(doc);
+        RENDER_TIME.since(start);
+        return new RenderResult(content, title, html, outline, words, etag, lastModified);
+    }
+
+    private int countWords(CharSequence text) {
+        int words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            boolean letter = !Character.isWhitespace(text.charAt(i));
+            if (letter && !inWord) words++;
+            inWord = letter;
+        }
+        return words;
+    }
+
+    private String hash(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(content);
+            byte[] hash = digest.digest();
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 8; i++) builder.append(String.format("%02x", hash[i]));
+            return builder.append('-').append(MarkdownConfig.getOptionsTag()).toString();
+        } catch (Exception e) {
+            logger.error("Could not hash content", e);
+            return file.lastModified() + "-" + MarkdownConfig.getOptionsTag();
+        }
     }
 
-    private Document getDocument() {
-        if (content == null || content.length() == 0) readContent();
+    /**
+     * Reads the current source without parsing or caching it, for consumers like the search index.
+     *
+     * @return The decoded source.
+     */
+    public CharSequence readSource() {
+        return read(this::decode);
+    }
 
-        return MarkdownFile.PARSER.parse(content);
+    /**
+     * @return The render result of the current content, parsed on first use and kept in the {@link RenderCache}.
+     */
+    public RenderResult getResult() {
+        return RenderCache.getInstance().get(this, this::render);
     }
 
-    private void generateHtml() {
-        html = RENDERER.render(getDocument());
+    public String getTitle() {
+        return getResult().getTitle();
     }
 
-    public String getContent() {
-        if (content == null || content.length() == 0) readContent();
-        return content;
+    /**
+     * @return The source of the cached render result, or the current source if pages are kept off the heap.
+     */
+    public CharSequence getContent() {
+        CharSequence content = getResult().getContent();
+        return content != null ? content : readSource();
     }
 
     public String getHtml() {
-        if (html == null) {
-            generateHtml();
-        }
-        return html;
+        return getResult().getHtml();
     }
 
     static class ChangeProvider implements AttributeProvider {
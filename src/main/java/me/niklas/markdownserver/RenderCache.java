@@ -0,0 +1,251 @@
+package me.niklas.markdownserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Holds the render results of all markdown files within a byte budget.
+ * Lookups do not lock. When the budget is exceeded, a few entries are sampled and the one used least often
+ * (ties: least recently) is evicted. A new entry is only admitted if it is used more often than its victim,
+ * so a crawl over rarely read pages can not flush the pages everybody reads.
+ */
+public final class RenderCache {
+
+    private static final int SAMPLES = 8;
+
+    private final ConcurrentHashMap<MarkdownFile, Entry> entries = new ConcurrentHashMap<>();
+    private final List<Entry> sampleList = new ArrayList<>(); //Same entries, for random sampling. Guarded by this
+    private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final long budget;
+    private long weight; //Guarded by this
+
+    RenderCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return The cache of this server, sized by {@link MarkdownConfig#RENDER_CACHE_SIZE}.
+     */
+    public static RenderCache getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @param file   The file.
+     * @param loader Renders the file if it is not cached.
+     * @return The cached or freshly rendered result.
+     */
+    RenderResult get(MarkdownFile file, Supplier<RenderResult> loader) {
+        sketch.increment(file.getUrl().hashCode());
+        Entry entry = entries.get(file);
+        if (entry != null) {
+            entry.lastAccess = clock.incrementAndGet();
+            hits.increment();
+            return entry.result;
+        }
+
+        synchronized (file) { //Render every file only once, even if it is requested by many threads at the same time
+            entry = entries.get(file);
+            if (entry != null) {
+                hits.increment();
+                return entry.result;
+            }
+            misses.increment();
+            RenderResult result = loader.get();
+            put(file, result);
+            return result;
+        }
+    }
+
+    private synchronized void put(MarkdownFile file, RenderResult result) {
+        if (file.isRetired()) return; //Rendered by a request on an older snapshot, nobody will ask for it again
+        Entry entry = new Entry(file, result, clock.incrementAndGet());
+        if (entry.weight > budget) {
+            rejections.increment();
+            return;
+        }
+
+        int frequency = sketch.frequency(file.getUrl().hashCode());
+        while (weight + entry.weight > budget && sampleList.size() > 0) {
+            Entry victim = sampleVictim();
+            if (sketch.frequency(victim.file.getUrl().hashCode()) > frequency) { //The victim is more valuable
+                rejections.increment();
+                return;
+            }
+            remove(victim);
+            evictions.increment();
+        }
+
+        entry.index = sampleList.size();
+        sampleList.add(entry);
+        entries.put(file, entry);
+        weight += entry.weight;
+    }
+
+    private Entry sampleVictim() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Entry victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < Math.min(SAMPLES, sampleList.size()); i++) {
+            Entry candidate = sampleList.get(random.nextInt(sampleList.size()));
+            int frequency = sketch.frequency(candidate.file.getUrl().hashCode());
+            if (frequency < victimFrequency || (frequency == victimFrequency && candidate.lastAccess < victim.lastAccess)) {
+                victim = candidate;
+                victimFrequency = frequency;
+            }
+        }
+        return victim;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.file, entry);
+        Entry last = sampleList.remove(sampleList.size() - 1); //Swap with the last one to remove in constant time
+        if (last != entry) {
+            last.index = entry.index;
+            sampleList.set(entry.index, last);
+        }
+        weight -= entry.weight;
+    }
+
+    /**
+     * Drops the result of a file which has changed or was deleted. The file is retired, results rendered for it later
+     * are not stored anymore.
+     *
+     * @param file The outdated file.
+     */
+    public synchronized void invalidate(MarkdownFile file) {
+        file.retire();
+        Entry entry = entries.get(file);
+        if (entry != null) remove(entry);
+    }
+
+    /**
+     * @param file The file.
+     * @return A number which is larger the more recently the file was read, 0 if it is not cached.
+     */
+    public long getLastAccess(MarkdownFile file) {
+        Entry entry = entries.get(file);
+        return entry == null ? 0 : entry.lastAccess;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return How often a result was not stored because it was too large or used less often than the entries it would have replaced.
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Creates the cache on first use, after the configuration was read, without locking later lookups.
+     */
+    private static final class Holder {
+        private static final RenderCache INSTANCE = new RenderCache(MarkdownConfig.RENDER_CACHE_SIZE * 1024 * 1024);
+    }
+
+    private static final class Entry {
+        private final MarkdownFile file;
+        private final RenderResult result;
+        private final long weight;
+        private volatile long lastAccess;
+        private int index; //Position in sampleList
+
+        private Entry(MarkdownFile file, RenderResult result, long lastAccess) {
+            this.file = file;
+            this.result = result;
+            this.weight = result.getWeight();
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Count-min sketch with four rows of 4 bit counters. All counters are halved after a while, so old popularity fades.
+     * Every counter is changed with a compare and set of its word, so a saturated counter never carries into its neighbour.
+     */
+    static final class FrequencySketch {
+        private final AtomicLongArray table;
+        private final int mask;
+        private final int resetAfter;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int counters) {
+            table = new AtomicLongArray(counters / 16); //16 counters of 4 bits per long
+            mask = table.length() - 1;
+            resetAfter = counters * 10;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int shift = offsetOf(hash, i);
+                long word;
+                do {
+                    word = table.get(index);
+                } while (((word >>> shift) & 0xfL) < 15 && !table.compareAndSet(index, word, word + (1L << shift)));
+                added |= ((word >>> shift) & 0xfL) < 15;
+            }
+            if (added && additions.incrementAndGet() == resetAfter) reset(); //Exactly one thread resets
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                frequency = (int) Math.min(frequency, (table.get(indexOf(hash, i)) >>> offsetOf(hash, i)) & 0xfL);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash + row) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private int offsetOf(int hash, int row) {
+            int h = hash * 0x85ebca6b + row * 0xc2b2ae35;
+            return ((h >>> 28) & 0xf) << 2;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length(); i++) table.getAndUpdate(i, word -> (word >>> 1) & 0x7777777777777777L);
+            additions.addAndGet(-resetAfter); //Increments during the reset still count towards the next one
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package me.niklas.markdownserver;
+
+import me.niklas.markdownserver.util.GzipSegment;
+import me.niklas.markdownserver.util.OffHeap;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything derived from one version of a markdown file. It is produced by a single parse and never changes afterwards.
+ */
+public final class RenderResult {
+
+    private final CharSequence content; //Null if the page is kept off the heap
+    private final String title;
+    private final String html; //Null if kept off the heap
+    private final ByteBuffer encodedHtml; //The html as UTF-8 in a direct buffer, or null
+    private final GzipSegment gzipHtml;
+    private final List<Heading> outline;
+    private final int wordCount;
+    private final String etag;
+    private final long lastModified;
+
+    RenderResult(CharSequence content, String title, String html, List<Heading> outline, int wordCount, String etag, long lastModified) {
+        this.title = title;
+        if (MarkdownConfig.OFF_HEAP_PAGES) { //Both encodings of the html leave the heap, the source is read again on demand
+            this.content = null;
+            this.html = null;
+            this.encodedHtml = OffHeap.encode(html);
+            this.gzipHtml = GzipSegment.compress(html).offHeap();
+        } else {
+            this.content = content;
+            this.html = html;
+            this.encodedHtml = null;
+            this.gzipHtml = GzipSegment.compress(html);
+        }
+        this.outline = Collections.unmodifiableList(outline);
+        this.wordCount = wordCount;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The decoded source, exactly as the parser has seen it, or null if the page is kept off the heap.
+     */
+    public CharSequence getContent() {
+        return content;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return The html. Decoded again on every call if the page is kept off the heap.
+     */
+    public String getHtml() {
+        return html != null ? html : OffHeap.decode(encodedHtml);
+    }
+
+    /**
+     * @return The html encoded as UTF-8 in a direct buffer of its own, or null if the page is kept on the heap.
+     */
+    public ByteBuffer getEncodedHtml() {
+        return encodedHtml == null ? null : encodedHtml.duplicate();
+    }
+
+    /**
+     * @return The html, compressed once when it was rendered.
+     */
+    public GzipSegment getGzipHtml() {
+        return gzipHtml;
+    }
+
+    /**
+     * @return The headings of the document in order.
+     */
+    public List<Heading> getOutline() {
+        return outline;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * @return A strong entity tag built from the hash of the content and the render options.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return The modification time of the file when its content was read.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The approximate number of bytes this result keeps in memory, on and off the heap.
+     */
+    long getWeight() {
+        long weight = 256 + 2L * (title.length() + etag.length()) + gzipHtml.getCompressedSize();
+        if (content != null) { //The whole buffer is kept
+            weight += 2L * (content instanceof CharBuffer ? ((CharBuffer) content).capacity() : content.length());
+        }
+        weight += html != null ? 2L * html.length() : encodedHtml.capacity();
+        for (Heading heading : outline) weight += 48 + 2L * heading.text.length();
+        return weight;
+    }
+
+    public static final class Heading {
+        private final int level;
+        private final String text;
+
+        Heading(int level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
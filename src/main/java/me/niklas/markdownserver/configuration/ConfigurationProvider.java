@@ -13,6 +13,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * Created by Niklas on 15.10.2019 in markdownserver
@@ -49,6 +51,18 @@ public class ConfigurationProvider {
         MarkdownConfig.ROOT = config.getString("root");
         MarkdownConfig.LIVE_RELOAD = config.getBoolean("liveReload");
         MarkdownConfig.COOKIE_AGE = config.getLong("cookieAge");
+        MarkdownConfig.RENDER_CACHE_SIZE = config.getLong("renderCacheSize");
+        MarkdownConfig.WARMUP = config.getInt("warmup");
+        MarkdownConfig.LOGIN_ATTEMPTS = config.getInt("loginAttempts");
+        MarkdownConfig.MIN_THREADS = config.getInt("minThreads");
+        MarkdownConfig.MAX_THREADS = config.getInt("maxThreads");
+        MarkdownConfig.THREAD_IDLE_TIMEOUT = config.getInt("threadIdleTimeout");
+        MarkdownConfig.ACCEPTORS = config.getInt("acceptors");
+        MarkdownConfig.SELECTORS = config.getInt("selectors");
+        MarkdownConfig.REQUEST_QUEUE = config.getInt("requestQueue");
+        MarkdownConfig.VIRTUAL_THREADS = config.getBoolean("virtualThreads");
+        MarkdownConfig.OFF_HEAP_PAGES = config.getBoolean("offHeapPages");
+        MarkdownConfig.TRUSTED_PROXIES = new HashSet<>(Arrays.asList(config.getStringArray("trustedProxies")));
     }
 
     private void buildConfigFile() {
@@ -79,6 +93,18 @@ public class ConfigurationProvider {
         setDefault("root", "/");
         setDefault("liveReload", true);
         setDefault("cookieAge", 2592000);
+        setDefault("renderCacheSize", 256);
+        setDefault("warmup", 0);
+        setDefault("loginAttempts", 10);
+        setDefault("minThreads", 8);
+        setDefault("maxThreads", 200);
+        setDefault("threadIdleTimeout", 60000);
+        setDefault("acceptors", -1);
+        setDefault("selectors", -1);
+        setDefault("requestQueue", 0);
+        setDefault("virtualThreads", false);
+        setDefault("offHeapPages", false);
+        setDefault("trustedProxies", "127.0.0.1,0:0:0:0:0:0:0:1");
 
         saveConfig();
     }
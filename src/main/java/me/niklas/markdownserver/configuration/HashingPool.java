@@ -0,0 +1,117 @@
+package me.niklas.markdownserver.configuration;
+
+import me.niklas.markdownserver.util.Histogram;
+import me.niklas.markdownserver.util.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the Argon2 hashing on a few dedicated threads instead of the request threads.
+ * Every hash needs its full memory, so the number of threads is limited by the available memory as well as the cores.
+ * The queue is bounded: when it is full, the request is rejected at once instead of waiting behind a flood of logins.
+ */
+public class HashingPool {
+
+    private static final long TIMEOUT = 30; //Seconds a caller waits for its hash
+    private static final Histogram HASH_TIME = Metrics.histogram("password_hash_duration_seconds", "Time from submitting a password hash or verification to its result");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ThreadPoolExecutor executor;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder latency = new LongAdder(); //Nanoseconds from submitting to the result, summed up
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * @param memory The memory of one hash in KiB.
+     */
+    HashingPool(int memory) {
+        long perHash = memory * 1024L;
+        int threads = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4 / perHash));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 8), runnable -> {
+            Thread thread = new Thread(runnable, "Password hashing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Password hashing threads: " + threads + ", queue: " + threads * 8);
+    }
+
+    /**
+     * Runs the task on the pool and waits for it.
+     *
+     * @param task The hashing or verification.
+     * @return The result of the task.
+     * @throws RejectedExecutionException If the queue is full or the task took too long.
+     */
+    <T> T run(Callable<T> task) {
+        long start = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+
+        try {
+            T result = future.get(TIMEOUT, TimeUnit.SECONDS);
+            long took = System.nanoTime() - start;
+            latency.add(took);
+            completed.increment();
+            maxLatency.accumulateAndGet(took, Math::max);
+            HASH_TIME.observe(took);
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.increment();
+            throw new RejectedExecutionException("Password hashing timed out", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * @return How often a task was not run because the queue was full or it timed out.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The average time from submitting to the result in milliseconds, including the time spent in the queue.
+     */
+    public double getAverageLatency() {
+        long count = completed.sum();
+        return count == 0 ? 0 : latency.sum() / 1e6 / count;
+    }
+
+    public double getMaxLatency() {
+        return maxLatency.get() / 1e6;
+    }
+}
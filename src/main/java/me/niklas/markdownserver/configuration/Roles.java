@@ -0,0 +1,83 @@
+package me.niklas.markdownserver.configuration;
+
+import org.apache.commons.configuration2.Configuration;
+
+import java.util.*;
+
+/**
+ * The users and their roles compiled from users.properties. Never changes, a new one is built after every change of the file,
+ * so the checks of every request need neither the configuration nor a lock.
+ */
+final class Roles {
+
+    static final Roles EMPTY = new Roles(Collections.emptyMap(), Collections.emptySet(), "", true);
+
+    private final Map<String, String> hashes; //Username to password hash
+    private final Set<String> admins; //Including the master
+    private final String master;
+    private final boolean adminOnly;
+    private final List<String> usernames; //Sorted
+
+    private Roles(Map<String, String> hashes, Set<String> admins, String master, boolean adminOnly) {
+        this.hashes = hashes;
+        this.admins = admins;
+        this.master = master;
+        this.adminOnly = adminOnly;
+
+        List<String> names = new ArrayList<>(hashes.keySet());
+        Collections.sort(names);
+        this.usernames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @param config  The configuration, it is only read.
+     * @param claimed The keys which are settings and not users.
+     * @return The snapshot of the current state.
+     */
+    static Roles of(Configuration config, Collection<String> claimed) {
+        Map<String, String> hashes = new HashMap<>();
+        Iterator<String> keys = config.getKeys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!claimed.contains(key)) hashes.put(key, config.getString(key));
+        }
+
+        String master = config.getString("master", "");
+        Set<String> admins = new HashSet<>(Arrays.asList(config.getStringArray("admin")));
+        admins.add(master);
+        admins.removeAll(claimed);
+        admins.remove("");
+        return new Roles(Collections.unmodifiableMap(hashes), Collections.unmodifiableSet(admins), master, config.getBoolean("adminOnly", true));
+    }
+
+    /**
+     * @return The password hash, null if there is no such user.
+     */
+    String getHash(String username) {
+        return username == null ? null : hashes.get(username);
+    }
+
+    boolean hasUser(String username) {
+        return username != null && hashes.containsKey(username);
+    }
+
+    boolean isAdmin(String username) {
+        return username != null && admins.contains(username);
+    }
+
+    boolean isMaster(String username) {
+        return username != null && master.length() > 0 && master.equals(username);
+    }
+
+    String getMaster() {
+        return master;
+    }
+
+    boolean isAdminOnly() {
+        return adminOnly;
+    }
+
+    List<String> getUsernames() {
+        return usernames;
+    }
+}
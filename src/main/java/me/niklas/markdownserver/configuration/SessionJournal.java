@@ -0,0 +1,181 @@
+package me.niklas.markdownserver.configuration;
+
+import me.niklas.markdownserver.util.User;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.convert.DefaultListDelimiterHandler;
+import org.apache.commons.configuration2.io.FileHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Persists the sessions as a snapshot (sessions.properties, same format as before) and a journal of the changes since.
+ * Changes are queued and appended by a single writer thread, everything that piled up while it was busy
+ * is written with one fsync. When the journal is much longer than the snapshot, the snapshot is rewritten
+ * and the journal emptied.
+ * <p>
+ * Journal lines: {@code +id=ip`name`time} adds a session, {@code -id} removes one, {@code *} removes all.
+ */
+class SessionJournal {
+
+    private static final int MIN_COMPACTION = 1000; //Entries before the journal is compacted at all
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Map<String, User> sessions; //The live state, written as snapshot on compaction
+    private final Runnable beforeSnapshot; //Called before the snapshot file is changed
+    private FileChannel channel; //Guarded by this
+    private int entries; //Lines in the journal. Guarded by this
+
+    SessionJournal(File snapshotFile, File journalFile, Map<String, User> sessions, Runnable beforeSnapshot) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.sessions = sessions;
+        this.beforeSnapshot = beforeSnapshot;
+
+        Thread writer = new Thread(this::writeLoop, "Session journal");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    void added(String id, User user) {
+        pending.add("+" + id + "=" + user.toString().replace('\n', ' '));
+    }
+
+    void removed(String id) {
+        pending.add("-" + id);
+    }
+
+    void cleared() {
+        pending.add("*");
+    }
+
+    /**
+     * Reads the snapshot and replays the journal on top of it. Both are read under the lock,
+     * so a compaction can not replace the snapshot and empty the journal in between.
+     *
+     * @param target   Receives the sessions, it is not cleared first.
+     * @param snapshot Loads the snapshot file.
+     */
+    synchronized void load(Map<String, User> target, Supplier<Configuration> snapshot) {
+        writePending(); //Nothing may be lost between the last write and the read
+        Configuration config = snapshot.get();
+        Iterator<String> it = config.getKeys();
+        while (it.hasNext()) {
+            String key = it.next();
+            try {
+                target.put(key, new User(config.getStringArray(key)));
+            } catch (Exception e) {
+                logger.error("Can not cast key " + key + " to User", e);
+            }
+        }
+
+        entries = 0;
+        if (!journalFile.exists()) return;
+        try {
+            for (String line : Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) continue;
+                entries++;
+                if (line.equals("*")) target.clear();
+                else if (line.charAt(0) == '-') target.remove(line.substring(1));
+                else if (line.charAt(0) == '+' && line.indexOf('=') > 0) {
+                    int split = line.indexOf('=');
+                    target.put(line.substring(1, split), new User(line.substring(split + 1).split("`")));
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Can not read session journal", e);
+        }
+    }
+
+    /**
+     * Writes and syncs everything queued so far.
+     */
+    synchronized void flush() {
+        writePending();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                String first = pending.take();
+                synchronized (this) {
+                    List<String> batch = new ArrayList<>();
+                    batch.add(first);
+                    pending.drainTo(batch);
+                    write(batch);
+                    if (entries > MIN_COMPACTION && entries > 2 * sessions.size()) compact();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Can not write session journal", e);
+            }
+        }
+    }
+
+    private void writePending() {
+        List<String> batch = new ArrayList<>();
+        pending.drainTo(batch);
+        if (batch.size() > 0) write(batch);
+    }
+
+    private void write(List<String> batch) {
+        StringBuilder builder = new StringBuilder();
+        batch.forEach(line -> builder.append(line).append('\n'));
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false); //One sync for the whole batch
+            entries += batch.size();
+        } catch (Exception e) {
+            logger.error("Can not write session journal", e);
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the current state and empties the journal.
+     * Queued changes are already part of the state, appending them again later does not change the result.
+     */
+    private void compact() {
+        PropertiesConfiguration snapshot = new PropertiesConfiguration();
+        snapshot.setListDelimiterHandler(new DefaultListDelimiterHandler('`'));
+        sessions.forEach((id, user) -> snapshot.setProperty(id, user.toString()));
+
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            FileHandler handler = new FileHandler(snapshot);
+            handler.setEncoding("UTF-8");
+            handler.save(temp);
+            beforeSnapshot.run();
+            Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.truncate(0);
+            channel.force(true);
+            logger.info("Compacted session journal of " + entries + " entries to " + snapshot.size() + " sessions");
+            entries = 0;
+        } catch (Exception e) {
+            logger.error("Can not compact session journal", e);
+        }
+    }
+}
@@ -15,19 +15,27 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by Niklas on 27.10.2019 in markdownserver
  */
 public class SessionsManager {
 
-    private final Map<String, User> cache = new HashMap<>();
+    public static final String JOURNAL_FILE = "sessions.journal"; //Written on every login and logout, the directory watcher skips it
+
+    private final Map<String, User> cache = new ConcurrentHashMap<>();
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final File propertiesFile;
-    private FileBasedConfigurationBuilder<FileBasedConfiguration> builder;
-    private Configuration config;
+    private final SessionJournal journal;
+    private final ArrayDeque<Map.Entry<String, User>> deadlines = new ArrayDeque<>(); //Oldest first, guarded by itself
+    private final LongAdder expired = new LongAdder();
 
-    private long lastUpdate;
+    private volatile long lastUpdate;
 
     public SessionsManager(File dir) {
         this.propertiesFile = new File(dir.getAbsolutePath() + File.separatorChar + "sessions.properties");
@@ -40,42 +48,60 @@ public class SessionsManager {
                 logger.error("Can not create properties file", e);
             }
         }
+        journal = new SessionJournal(propertiesFile, new File(dir.getAbsolutePath() + File.separatorChar + JOURNAL_FILE), cache, this::update);
         reload();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Session expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes all sessions which have expired. Every session lives equally long, so sorted by creation time
+     * the queue is also sorted by deadline and only its head has to be looked at.
+     * Sessions which were removed earlier are dropped when they reach the head.
+     */
+    private void expire() {
+        int count = 0;
+        synchronized (deadlines) {
+            Map.Entry<String, User> head;
+            while ((head = deadlines.peek()) != null && head.getValue().isInvalid()) {
+                deadlines.poll();
+                if (cache.remove(head.getKey(), head.getValue())) {
+                    journal.removed(head.getKey()); //The journal writes all of them at once
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            expired.add(count);
+            logger.info("Expired sessions: " + count);
+        }
     }
 
     public void invalidateAll() {
-        cache.clear();
-        config.clear();
-        saveConfig();
+        synchronized (deadlines) {
+            cache.clear();
+            deadlines.clear();
+            journal.cleared();
+        }
     }
 
     public void invalidateSessionsForUser(String username) {
         if (username == null || username.length() == 0) return;
 
-        List<String> keys = new ArrayList<>();
         cache.forEach((id, user) -> {
-            if (user.getName().equals(username)) {
-                keys.add(id);
-            }
+            if (user.getName().equals(username)) invalidateId(id);
         });
-
-        keys.forEach(key -> {
-            cache.remove(key);
-            config.clearProperty(key);
-        });
-
-        saveConfig();
     }
 
     public void invalidateId(String loginId) {
-        invalidateId(loginId, true);
-    }
-
-    private void invalidateId(String loginId, boolean save) {
-        if (config.containsKey(loginId)) {
-            cache.remove(loginId);
-            config.clearProperty(loginId);
-            if (save) saveConfig();
+        if (loginId == null) return;
+        synchronized (deadlines) { //A reload must not read the journal between both steps
+            if (cache.remove(loginId) != null) journal.removed(loginId);
         }
     }
 
@@ -89,40 +115,26 @@ public class SessionsManager {
             return;
         }
         update();
-        buildConfigFile();
-
-        cache.clear();
-        Iterator<String> it = config.getKeys();
-        while (it.hasNext()) {
-            String key = it.next();
-            try {
-                cache.put(key, new User(config.getStringArray(key)));
-            } catch (Exception e) {
-                logger.error("Can not cast key " + key + " to User", e);
-            }
-        }
 
-        List<String> invalidKeys = new ArrayList<>();
-        cache.forEach((id, user) -> {
-            if (user.isInvalid()) invalidKeys.add(id);
-        });
+        Map<String, User> loaded = new HashMap<>();
+        synchronized (deadlines) { //Changes are queued under this lock too, so the files contain every session of the cache
+            journal.load(loaded, this::loadConfig);
+            cache.keySet().retainAll(loaded.keySet());
+            cache.putAll(loaded);
 
-        if (invalidKeys.size() > 0) {
-            logger.debug("Invalid keys: ");
-            invalidKeys.forEach(key -> logger.debug(key + " = " + cache.get(key).toString()));
+            List<Map.Entry<String, User>> sorted = new ArrayList<>(cache.entrySet());
+            sorted.sort(Comparator.comparingLong(entry -> entry.getValue().getCreationTime()));
+            deadlines.clear();
+            sorted.forEach(entry -> deadlines.add(new AbstractMap.SimpleImmutableEntry<>(entry)));
         }
 
-        invalidKeys.forEach(key -> invalidateId(key, false));
-        if (invalidKeys.size() > 0) saveConfig();
+        expire();
         logger.info("Sessions: " + cache.size());
     }
 
-    private void buildConfigFile() {
+    private Configuration loadConfig() {
         Parameters params = new Parameters();
-        params.properties().setFile(propertiesFile);
-        params.properties().setEncoding("UTF-8");
-
-        builder =
+        FileBasedConfigurationBuilder<FileBasedConfiguration> builder =
                 new FileBasedConfigurationBuilder<FileBasedConfiguration>(PropertiesConfiguration.class)
                         .configure(params.properties()
                                 .setFile(propertiesFile)
@@ -130,18 +142,10 @@ public class SessionsManager {
                                 .setListDelimiterHandler(new DefaultListDelimiterHandler('`')));
 
         try {
-            config = builder.getConfiguration();
+            return builder.getConfiguration();
         } catch (ConfigurationException e) {
             logger.error("Can not load properties", e);
-        }
-
-    }
-
-    private void saveConfig() {
-        try {
-            builder.save();
-        } catch (ConfigurationException e) {
-            logger.error("Can not save config", e);
+            return new PropertiesConfiguration();
         }
     }
 
@@ -154,11 +158,12 @@ public class SessionsManager {
         String lid = RandomStringUtils.random(32, true, true);
 
         User user = new User(ip, username, System.currentTimeMillis());
-        cache.put(lid, user);
-        config.setProperty(lid, user.toString());
+        synchronized (deadlines) {
+            cache.put(lid, user);
+            deadlines.add(new AbstractMap.SimpleImmutableEntry<>(lid, user)); //Newest, so it expires last
+            journal.added(lid, user); //Appended in the background, the file is never rewritten per login
+        }
         logger.info("Saved cookie: " + lid);
-        update();
-        saveConfig();
         return lid;
     }
 
@@ -171,7 +176,7 @@ public class SessionsManager {
             logger.warn("Invalid request format in hasSession");
             return false;
         }
-        if (!cache.containsKey(loginId)) {
+        if (getSession(loginId) == null) {
             logger.info("loginId is not stored");
             return false;
         }
@@ -179,12 +184,24 @@ public class SessionsManager {
     }
 
     public String getNameById(String loginId) {
-        if (loginId == null || !cache.containsKey(loginId)) return null;
-        return cache.get(loginId).getName();
+        User user = getSession(loginId);
+        return user == null ? null : user.getName();
     }
 
+    /**
+     * @param cookie The login id.
+     * @return The session, null if it does not exist or has expired since the last expiry run.
+     */
     public User getSession(String cookie) {
         if (cookie == null) return null;
-        return cache.getOrDefault(cookie, null);
+        User user = cache.get(cookie);
+        return user == null || user.isInvalid() ? null : user;
+    }
+
+    /**
+     * @return The number of sessions removed because they expired.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
     }
 }
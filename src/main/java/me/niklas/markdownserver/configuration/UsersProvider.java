@@ -29,10 +29,12 @@ public class UsersProvider {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final Argon2 argon = Argon2Factory.create();
+    private final HashingPool hashing = new HashingPool(memory); //Keeps hashing off the request threads
     private final File propertiesFile;
-    private int iterations;
+    private volatile int iterations;
     private FileBasedConfigurationBuilder<FileBasedConfiguration> builder;
-    private Configuration config;
+    private Configuration config; //Only touched by the synchronized methods which change users
+    private volatile Roles roles = Roles.EMPTY; //Read by every request
     private long lastUpdate;
 
     public UsersProvider(File directory) {
@@ -49,7 +51,7 @@ public class UsersProvider {
         reload();
     }
 
-    public void reload() {
+    public synchronized void reload() {
         if (System.currentTimeMillis() - lastUpdate < 5000) {
             logger.info("Blocking update");
             return;
@@ -57,34 +59,33 @@ public class UsersProvider {
         update();
         buildConfigFile();
         buildDefault();
+        publish();
+    }
+
+    /**
+     * Compiles the configuration into a new snapshot, must be called after every change.
+     */
+    private void publish() {
+        roles = Roles.of(config, CLAIMED);
     }
 
     public boolean isAdmin(Request request) {
-        return isAdminByName(request.session(true).attribute("username"));
+        return isAdminByName(request.attribute("username"));
     }
 
     public boolean isMaster(Request request) {
-        return isMasterByName(request.session(true).attribute("username"));
+        return isMasterByName(request.attribute("username"));
     }
 
     public boolean isMasterByName(String username) {
-        if (username == null || username.length() == 0 || CLAIMED.contains(username)) return false;
-        return config.getString("master", "").equals(username);
+        return roles.isMaster(username);
     }
 
     public boolean isAdminByName(String username) {
-        if (username == null || username.length() == 0 || CLAIMED.contains(username)) return false;
-        if (config.getString("master", "").equals(username)) return true;
-
-        String[] admin = config.getStringArray("admin");
-
-        for (String s : admin) {
-            if (s.equals(username)) return true;
-        }
-        return false;
+        return roles.isAdmin(username);
     }
 
-    public boolean addAdmin(String username, String author) {
+    public synchronized boolean addAdmin(String username, String author) {
         if (!config.getString("master").equals(author)) return false;
         if (CLAIMED.contains(username)) return false;
 
@@ -103,7 +104,7 @@ public class UsersProvider {
         return true;
     }
 
-    public void removeAdmin(String username, String author) {
+    public synchronized void removeAdmin(String username, String author) {
         if (!config.getString("master").equals(author)) return;
         if (CLAIMED.contains(username)) return;
 
@@ -128,15 +129,38 @@ public class UsersProvider {
         saveConfig();
     }
 
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException If too many logins are verified at the moment.
+     */
     public boolean verifyLogin(String username, String password) {
-        if (!config.containsKey(username) || CLAIMED.contains("username")) return false;
-        boolean valid = argon.verify(config.getString(username), password.toCharArray());
-        argon.wipeArray(password.toCharArray());
-        return valid;
+        String hash = roles.getHash(username);
+        if (hash == null) return false;
+        char[] chars = password.toCharArray();
+        try {
+            return hashing.run(() -> argon.verify(hash, chars));
+        } finally {
+            argon.wipeArray(chars);
+        }
+    }
+
+    private String hash(String password) {
+        char[] chars = password.toCharArray();
+        try {
+            return hashing.run(() -> argon.hash(iterations, memory, 1, chars));
+        } finally {
+            argon.wipeArray(chars);
+        }
+    }
+
+    /**
+     * @return The pool all hashes are computed on, for its metrics.
+     */
+    public HashingPool getHashingPool() {
+        return hashing;
     }
 
-    public boolean removeUser(String username) {
-        if (!config.containsKey(username) || CLAIMED.contains("username")) return false;
+    public synchronized boolean removeUser(String username) {
+        if (!config.containsKey(username) || CLAIMED.contains(username)) return false;
         config.clearProperty(username);
         removeAdmin(username, config.getString("master"));
         saveConfig();
@@ -144,9 +168,13 @@ public class UsersProvider {
     }
 
     public boolean addUser(String username, String password) {
-        if (config.containsKey(username) || CLAIMED.contains(username)) return false;
-        config.setProperty(username, argon.hash(iterations, memory, 1, password.toCharArray()));
-        saveConfig();
+        if (roles.hasUser(username) || CLAIMED.contains(username)) return false;
+        String hash = hash(password); //Outside of the lock, it takes a while
+        synchronized (this) {
+            if (config.containsKey(username)) return false;
+            config.setProperty(username, hash);
+            saveConfig();
+        }
         return true;
     }
 
@@ -214,6 +242,7 @@ public class UsersProvider {
 
 
     private void saveConfig() {
+        publish();
         try {
             builder.save();
         } catch (ConfigurationException e) {
@@ -222,7 +251,7 @@ public class UsersProvider {
     }
 
     public boolean changePassword(Request request, Response response) {
-        String username = request.session(true).attribute("username");
+        String username = request.attribute("username");
         if (username == null) {
             logger.warn("No username is session");
             return false;
@@ -239,32 +268,29 @@ public class UsersProvider {
             return false;
         }
 
-        config.setProperty(username, argon.hash(iterations, memory, 1, newPass.toCharArray()));
-        saveConfig();
+        setHash(username, hash(newPass));
         return true;
     }
 
     public boolean changePassword(Request request, String username, String password) {
         if (!isMaster(request)) return false;
-        config.setProperty(username, argon.hash(iterations, memory, 1, password.toCharArray()));
-        saveConfig();
+        setHash(username, hash(password));
         return true;
     }
 
-    public List<String> getUsernames() {
-        Iterator<String> keys = config.getKeys();
-        List<String> result = new ArrayList<>();
-
-        while (keys.hasNext()) {
-            String i = keys.next();
-            if (!CLAIMED.contains(i)) result.add(i);
-        }
-        Collections.sort(result);
+    private synchronized void setHash(String username, String hash) {
+        config.setProperty(username, hash);
+        saveConfig();
+    }
 
-        return result;
+    /**
+     * @return The sorted names of all users.
+     */
+    public List<String> getUsernames() {
+        return roles.getUsernames();
     }
 
-    public boolean toggleAdminOnly() {
+    public synchronized boolean toggleAdminOnly() {
         config.setProperty("adminOnly", config.getBoolean("adminOnly") ? "false" : "true");
         update();
         saveConfig();
@@ -281,6 +307,6 @@ public class UsersProvider {
     }
 
     public boolean isAdminOnly() {
-        return config.getBoolean("adminOnly");
+        return roles.isAdminOnly();
     }
 }
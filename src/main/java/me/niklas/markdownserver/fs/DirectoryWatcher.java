@@ -1,10 +1,20 @@
 package me.niklas.markdownserver.fs;
 
+import me.niklas.markdownserver.configuration.SessionsManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
@@ -13,69 +23,123 @@ import static java.nio.file.StandardWatchEventKinds.*;
  */
 public class DirectoryWatcher {
 
-    public DirectoryWatcher(Runnable runOnNormalEvent, Runnable runOnConfigEvent, File dir) {
+    private static final long SETTLE_TIME = 200; //Milliseconds to wait for further events of the same save
 
-        Logger logger = LoggerFactory.getLogger("DirectoryWatcher");
+    private final Logger logger = LoggerFactory.getLogger("DirectoryWatcher");
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private WatchService watcher;
+
+    /**
+     * Watches the directory and all of its subdirectories, including the ones created later. Blocks while watching.
+     *
+     * @param runOnFileEvent   Called once per save with all changed paths. A path may point to a file or directory which no longer exists.
+     * @param runOnOverflow    Called when events were lost, everything has to be scanned again.
+     * @param runOnConfigEvent Called when a properties file changed.
+     * @param dir              The directory.
+     */
+    public DirectoryWatcher(Consumer<Collection<Path>> runOnFileEvent, Runnable runOnOverflow, Runnable runOnConfigEvent, File dir) {
         logger.info("DIRECTORY WATCHER: RUNNING ON " + dir.getAbsolutePath());
         try {
-            WatchService watcher = FileSystems.getDefault().newWatchService();
-            Path path = dir.toPath();
-            path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-
-            File[] subdirectories;
-            if ((subdirectories = dir.listFiles()) != null) {
-                for (File file : subdirectories) {
-                    if (file.isDirectory()) file.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-                }
-            }
+            watcher = FileSystems.getDefault().newWatchService();
+            registerAll(dir.toPath());
+            Path journal = dir.toPath().resolve(SessionsManager.JOURNAL_FILE);
 
             long lastConfigUpdate = 0;
-            long lastFileUpdate = 0;
 
-            boolean run = true;
-            while (run) {
+            while (true) {
                 try {
                     WatchKey key = watcher.take();
 
-                    if (key == null) {
-                        logger.info("POLLED NOTHING; CONTINUE!");
-                        continue;
-                    }
-
-                    Thread.sleep(3000);
-
-                    boolean reloadNormal = false;
+                    Set<Path> changed = new LinkedHashSet<>();
+                    boolean overflow = false;
                     boolean reloadConfig = false;
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent.Kind<?> kind = event.kind();
+                    while (key != null) { //Collect everything that belongs to this save
+                        Path parent = keys.get(key);
+
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            WatchEvent.Kind<?> kind = event.kind();
 
-                        if (kind == OVERFLOW) continue;
+                            if (kind == OVERFLOW) {
+                                overflow = true;
+                                continue;
+                            }
+                            if (parent == null) continue;
 
-                        WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                        Path filename = ev.context();
-                        if (filename.toString().contains(".properties")) reloadConfig = true;
-                        else reloadNormal = true;
+                            Path path = parent.resolve((Path) event.context());
+                            if (path.equals(journal)) continue; //Neither content nor configuration
+                            if (path.getFileName().toString().contains(".properties")) {
+                                reloadConfig = true;
+                                continue;
+                            }
+                            if (kind == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                                registerAll(path, changed); //Files may have been created before the directory was watched
+                            }
+                            changed.add(path);
+                        }
+                        if (!key.reset()) {
+                            keys.remove(key);
+                            if (parent != null && parent.equals(dir.toPath())) {
+                                logger.warn("DIRECTORY WATCHER: STOPPED");
+                                return;
+                            }
+                        }
+                        key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
                     }
-                    if (reloadNormal && (System.currentTimeMillis() - lastFileUpdate) > 1000) {
-                        lastFileUpdate = System.currentTimeMillis();
-                        logger.info("FIRING NORMAL UPDATE EVENT");
-                        runOnNormalEvent.run();
+
+                    if (overflow) {
+                        logger.info("FIRING FULL UPDATE EVENT");
+                        runOnOverflow.run();
+                    } else if (changed.size() > 0) {
+                        logger.info("FIRING UPDATE EVENT FOR " + changed.size() + " PATHS");
+                        runOnFileEvent.accept(changed);
                     }
                     if (reloadConfig && (System.currentTimeMillis() - lastConfigUpdate) > 1000) {
                         lastConfigUpdate = System.currentTimeMillis();
                         logger.info("FIRING CONFIG UPDATE EVENT");
                         runOnConfigEvent.run();
                     }
-                    run = key.reset();
+                } catch (InterruptedException e) {
+                    logger.warn("DIRECTORY WATCHER: INTERRUPTED");
+                    return;
                 } catch (Exception e) {
                     logger.error("Error in watcher iteration", e);
                 }
             }
-
-            logger.warn("DIRECTORY WATCHER: STOPPED");
         } catch (Exception e) {
             logger.error("Failed at watching directory", e);
             logger.error("Directory watcher STOPPED");
         }
     }
+
+    private void registerAll(Path start) throws IOException {
+        registerAll(start, null);
+    }
+
+    /**
+     * Registers the directory and every directory below it.
+     *
+     * @param start The directory.
+     * @param found If not null, the files found below the directory are added.
+     */
+    private void registerAll(Path start, Set<Path> found) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                keys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (found != null) found.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                logger.warn("Can not watch " + file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
 }
@@ -0,0 +1,168 @@
+package me.niklas.markdownserver.fs;
+
+import me.niklas.markdownserver.MarkdownFile;
+import me.niklas.markdownserver.util.MarkdownComparator;
+
+import java.util.*;
+
+/**
+ * One directory of the url prefix tree. Every node knows the files in its subtree already sorted,
+ * so a folder overview does not have to filter or sort anything at request time.
+ * Nodes never change, a change creates new nodes along its path and shares all other subtrees.
+ * The html of the overview is generated on first use and then kept, so a change only invalidates the folders on its path.
+ */
+final class FolderNode {
+
+    private static final MarkdownComparator COMPARATOR = new MarkdownComparator();
+
+    private final String path;
+    private final Map<String, FolderNode> children;
+    private final List<MarkdownFile> overview;
+    private volatile FolderPage page; //Generated on first use, the next version of this node takes it over if the urls are the same
+
+    private FolderNode(String path, Map<String, FolderNode> children, List<MarkdownFile> overview) {
+        this.path = path;
+        this.children = Collections.unmodifiableMap(children);
+        this.overview = Collections.unmodifiableList(overview);
+    }
+
+    /**
+     * Builds the tree for the given files.
+     *
+     * @param path  The path of the node.
+     * @param files The files, their urls have to start with the path.
+     * @return The node.
+     */
+    static FolderNode build(String path, Collection<MarkdownFile> files) {
+        Map<String, FolderNode> children = new HashMap<>();
+        group(path, files).forEach((name, group) -> children.put(name, build(childPath(path, name), group)));
+
+        List<MarkdownFile> overview = new ArrayList<>(files);
+        overview.sort(COMPARATOR);
+        return new FolderNode(path, children, overview);
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * @param files The files, their urls have to start with the path of this node.
+     * @return A node which contains the files in addition to everything this node contains.
+     */
+    FolderNode with(Collection<MarkdownFile> files) {
+        if (files.isEmpty()) return this;
+        List<MarkdownFile> overview = new ArrayList<>(this.overview.size() + files.size());
+        overview.addAll(this.overview);
+        overview.addAll(files);
+        overview.sort(COMPARATOR); //Mostly sorted already, so close to linear
+
+        Map<String, FolderNode> children = new HashMap<>(this.children);
+        group(path, files).forEach((name, group) -> {
+            FolderNode child = children.get(name);
+            children.put(name, child == null ? build(childPath(path, name), group) : child.with(group));
+        });
+        return new FolderNode(path, children, overview);
+    }
+
+    /**
+     * Removes all files in one pass, so a deleted directory costs one walk over the folders on its path.
+     *
+     * @param files The files to remove.
+     * @return A node without the files, or null if the node would be empty.
+     */
+    FolderNode without(Set<MarkdownFile> files) {
+        List<MarkdownFile> overview = new ArrayList<>(this.overview.size());
+        List<MarkdownFile> found = new ArrayList<>();
+        for (MarkdownFile file : this.overview) (files.contains(file) ? found : overview).add(file);
+        if (found.isEmpty()) return this;
+        if (overview.isEmpty()) return null; //The whole subtree is gone
+
+        Map<String, FolderNode> children = new HashMap<>(this.children);
+        group(path, found).forEach((name, group) -> {
+            FolderNode child = children.get(name).without(files);
+            if (child == null) children.remove(name);
+            else children.put(name, child);
+        });
+        return new FolderNode(path, children, overview);
+    }
+
+    /**
+     * @return The files which are not direct children of the path, by the name of the child folder they belong to.
+     */
+    private static Map<String, List<MarkdownFile>> group(String path, Collection<MarkdownFile> files) {
+        Map<String, List<MarkdownFile>> groups = new HashMap<>();
+        for (MarkdownFile file : files) {
+            String name = childName(path, file.getUrl());
+            if (name != null) groups.computeIfAbsent(name, key -> new ArrayList<>()).add(file);
+        }
+        return groups;
+    }
+
+    /**
+     * @return The name of the child folder on the way to the url, or null if the url is a direct child of the path.
+     */
+    private static String childName(String path, String url) {
+        int start = path.length() == 1 ? 1 : path.length() + 1;
+        int slash = url.indexOf('/', start);
+        return slash == -1 ? null : url.substring(start, slash);
+    }
+
+    private static String childPath(String path, String name) {
+        return path.length() == 1 ? "/" + name : path + "/" + name;
+    }
+
+    /**
+     * @param path The path of the folder, without trailing slash (except for the root itself).
+     * @return The node or null if there is no folder containing markdown files at this path.
+     */
+    FolderNode find(String path) {
+        if (path.equals(this.path)) return this;
+        if (!path.startsWith(this.path)) return null;
+
+        int start = this.path.length() == 1 ? 1 : this.path.length() + 1;
+        if (start > path.length()) return null;
+        int slash = path.indexOf('/', start);
+        FolderNode child = children.get(slash == -1 ? path.substring(start) : path.substring(start, slash));
+        return child == null ? null : child.find(path);
+    }
+
+    /**
+     * @return All files of this subtree, sorted by {@link MarkdownComparator}.
+     */
+    List<MarkdownFile> getOverview() {
+        return overview;
+    }
+
+    /**
+     * @return The overview of this folder as html, generated once.
+     */
+    FolderPage getPage() {
+        FolderPage page = this.page;
+        if (page == null) this.page = page = FolderPage.of(overview); //Two requests may both generate it, the result is the same
+        return page;
+    }
+
+    /**
+     * Takes over the generated pages of the previous version of the tree wherever the listed urls did not change,
+     * e.g. when only the content of a file changed or a whole rescan found the same files.
+     * Shared subtrees are skipped, they already have their pages.
+     *
+     * @param previous The node at the same path in the previous tree, may be null.
+     */
+    void keepPages(FolderNode previous) {
+        if (previous == null || previous == this) return;
+
+        FolderPage previousPage = previous.page;
+        if (page == null && previousPage != null && sameUrls(overview, previous.overview)) page = previousPage;
+        children.forEach((name, child) -> child.keepPages(previous.children.get(name)));
+    }
+
+    private static boolean sameUrls(List<MarkdownFile> a, List<MarkdownFile> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i) && !a.get(i).getUrl().equals(b.get(i).getUrl())) return false;
+        }
+        return true;
+    }
+}
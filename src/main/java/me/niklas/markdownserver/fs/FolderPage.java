@@ -0,0 +1,85 @@
+package me.niklas.markdownserver.fs;
+
+import me.niklas.markdownserver.MarkdownConfig;
+import me.niklas.markdownserver.MarkdownFile;
+import me.niklas.markdownserver.util.GzipSegment;
+import me.niklas.markdownserver.util.OffHeap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The overview of one folder, generated once and kept by its node of the index.
+ * It only contains the urls of the files, so it stays valid as long as no file below the folder is added or removed.
+ * Like the pages, it is kept in direct buffers if {@link MarkdownConfig#OFF_HEAP_PAGES} is set, the root listing of a large
+ * corpus is several MB.
+ */
+public final class FolderPage {
+
+    private final String html; //Null if kept off the heap
+    private final ByteBuffer encodedHtml; //The html as UTF-8 in a direct buffer, or null
+    private final GzipSegment gzipHtml;
+    private final String etag;
+
+    private FolderPage(String html) {
+        if (MarkdownConfig.OFF_HEAP_PAGES) {
+            this.html = null;
+            this.encodedHtml = OffHeap.encode(html);
+            this.gzipHtml = GzipSegment.compress(html).offHeap();
+        } else {
+            this.html = html;
+            this.encodedHtml = null;
+            this.gzipHtml = GzipSegment.compress(html);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(html.getBytes(StandardCharsets.UTF_8));
+        this.etag = Long.toHexString(crc.getValue());
+    }
+
+    static FolderPage of(List<MarkdownFile> files) {
+        return new FolderPage(generateHtml(files));
+    }
+
+    /**
+     * @param files The files of the folder, already sorted.
+     * @return The list of links.
+     */
+    private static String generateHtml(List<MarkdownFile> files) {
+        StringBuilder builder = new StringBuilder(32 + files.size() * 64).append("<h1>Ordnerübersicht</h1><ul>");
+
+        files.forEach(file -> builder.append("<li><a href=\"").append(file.getUrl()).append("\">").append(file.getUrl()).append("</a></li>"));
+
+        return builder.append("</ul>").toString();
+    }
+
+    /**
+     * @return The html. Decoded again on every call if the page is kept off the heap.
+     */
+    public String getHtml() {
+        return html != null ? html : OffHeap.decode(encodedHtml);
+    }
+
+    /**
+     * @return The html encoded as UTF-8 in a direct buffer of its own, or null if the page is kept on the heap.
+     */
+    public ByteBuffer getEncodedHtml() {
+        return encodedHtml == null ? null : encodedHtml.duplicate();
+    }
+
+    /**
+     * @return The html, compressed once when it was generated.
+     */
+    public GzipSegment getGzipHtml() {
+        return gzipHtml;
+    }
+
+    /**
+     * @return A strong entity tag built from the hash of the html.
+     */
+    public String getETag() {
+        return etag;
+    }
+}
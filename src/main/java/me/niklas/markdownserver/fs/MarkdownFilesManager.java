@@ -1,71 +1,240 @@
 package me.niklas.markdownserver.fs;
 
+import me.niklas.markdownserver.MarkdownConfig;
 import me.niklas.markdownserver.MarkdownFile;
-import me.niklas.markdownserver.util.MarkdownComparator;
+import me.niklas.markdownserver.RenderCache;
+import me.niklas.markdownserver.util.Histogram;
+import me.niklas.markdownserver.util.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by Niklas on 24.10.2019 in markdownserver
  */
 public class MarkdownFilesManager {
 
-    private final List<MarkdownFile> files = new ArrayList<>();
-    private final Map<String, String> indexFiles = new HashMap<>();
+    private static final Histogram RESCAN_TIME = Metrics.histogram("markdown_rescan_duration_seconds", "Time of a full rescan of the markdown files");
+    private static final Histogram UPDATE_TIME = Metrics.histogram("markdown_update_duration_seconds", "Time to apply the changes of one save");
+    private final AtomicReference<MarkdownIndex> index = new AtomicReference<>(MarkdownIndex.EMPTY);
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final File rd;
-    private String dropdown = "";
+    private final ForkJoinPool renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private volatile SearchIndex search = new SearchIndex();
 
     public MarkdownFilesManager(File rd) {
-        this.rd = rd;
+        this.rd = rd.getAbsoluteFile();
     }
 
-    public void rescan() {
-        scanMarkdownFiles(rd);
-        generateDropdowns();
+    /**
+     * Scans everything again. The new index is built next to the current one, readers keep using the old one until it is published.
+     */
+    public synchronized void rescan() {
+        logger.info("RELOADING MARKDOWN FILES");
+        long start = System.nanoTime();
+        MarkdownIndex current = index.get();
+        Draft draft = new Draft(MarkdownIndex.EMPTY);
+        scanMarkdownFiles(rd, draft, current);
+
+        draft.files.values().forEach(file -> draft.urls.putIfAbsent(file.getUrl(), file)); //Keep the first one, just like the former linear scan did
+        draft.tree = FolderNode.build("/", draft.files.values());
+        draft.dropdown = generateDropdowns();
+        if (MarkdownConfig.WARMUP != 0 && current != MarkdownIndex.EMPTY) { //The first scan is warmed up by warmup()
+            List<MarkdownFile> changed = new ArrayList<>();
+            draft.files.forEach((file, markdown) -> {
+                if (current.getFiles().get(file) != markdown) changed.add(markdown);
+            });
+            prerender(changed);
+        }
+        updateSearch(current, draft);
+        publish(draft);
+        current.getFiles().forEach((file, old) -> { //Drop the render results of files which are gone or have changed
+            if (draft.files.get(file) != old) RenderCache.getInstance().invalidate(old);
+        });
+
+        RESCAN_TIME.since(start);
+        logger.info("Files found: " + draft.files.size());
+        logger.info("Indices:" + draft.indexFiles.size());
     }
 
-    private void scanMarkdownFiles(File dir) {
-        if (!dir.isDirectory()) return;
-        if (dir.equals(rd)) {
-            logger.info("RELOADING MARKDOWN FILES");
-            files.clear();
-            indexFiles.clear();
+    /**
+     * Applies the changes of one save without scanning everything again. All paths go into one draft, which is published once.
+     * Only the entries themselves and the folders containing them are touched, all other files keep their render results.
+     *
+     * @param paths The created, modified or deleted files or directories.
+     */
+    public synchronized void update(Collection<Path> paths) {
+        long start = System.nanoTime();
+        MarkdownIndex current = index.get();
+        Draft draft = new Draft(current);
+        boolean changed = false;
+        for (Path path : paths) changed |= apply(path.toFile().getAbsoluteFile(), draft, current);
+        if (!changed) return;
+
+        if (MarkdownConfig.WARMUP != 0) prerender(draft.added); //Readers get the new versions warm
+        draft.finish();
+        publish(draft);
+        draft.removed.forEach(RenderCache.getInstance()::invalidate); //After publishing, so readers do not cache them again
+        UPDATE_TIME.since(start);
+    }
+
+    /**
+     * Applies the change of a single path to the draft.
+     *
+     * @return Whether anything indexed has changed.
+     */
+    private boolean apply(File file, Draft draft, MarkdownIndex current) {
+        if (!file.getPath().startsWith(rd.getPath())) return false;
+
+        if (!file.exists()) { //Deleted, this may have been a whole directory
+            List<MarkdownFile> removed = new ArrayList<>();
+            MarkdownFile single = draft.files.get(file);
+            if (single != null) removed.add(single);
+            else { //Only the files in the folder with the same url and the ones added in this batch can be below it
+                String prefix = file.getPath() + File.separator;
+                FolderNode folder = current.getTree().find(getBaseUrl(file));
+                List<MarkdownFile> candidates = new ArrayList<>(draft.added);
+                if (folder != null) candidates.addAll(folder.getOverview());
+                candidates.forEach(candidate -> {
+                    if (candidate.getFile().getPath().startsWith(prefix) && draft.files.get(candidate.getFile()) == candidate) removed.add(candidate);
+                });
+            }
+            removed.forEach(old -> {
+                draft.files.remove(old.getFile());
+                draft.remove(old);
+                search.remove(old);
+            });
+
+            int indices = draft.indexFiles.size();
+            if (file.getName().equals(".mdIndex")) draft.indexFiles.remove(getBaseUrl(file.getParentFile())); //The folders below keep theirs
+            else {
+                String baseUrl = getBaseUrl(file);
+                draft.indexFiles.keySet().removeIf(url -> url.equals(baseUrl) || url.startsWith(baseUrl + "/"));
+            }
+            boolean dropdown = rd.equals(file.getParentFile());
+            if (dropdown) draft.dropdown = generateDropdowns();
+            if (removed.size() > 0) logger.info("Removed " + removed.size() + " files at " + file.getPath());
+            return removed.size() > 0 || indices != draft.indexFiles.size() || dropdown;
+        } else if (file.isDirectory()) { //Its content is reported separately
+            if (!rd.equals(file.getParentFile())) return false;
+            draft.dropdown = generateDropdowns();
+        } else if (file.getName().endsWith(".md")) {
+            MarkdownFile old = draft.files.get(file);
+            if (old != null) draft.remove(old);
+
+            MarkdownFile created = new MarkdownFile(file, rd);
+            draft.add(created);
+            search.add(created); //Replaces the old version
+            logger.info((old == null ? "Added " : "Updated ") + created.getUrl());
+        } else if (file.getName().equals(".mdIndex")) {
+            readIndexFile(file, draft);
+        } else return false; //Nothing which is indexed
+        return true;
+    }
+
+    /**
+     * Renders files in the background, so the first readers do not have to wait for the parser.
+     *
+     * @param limit -1 for all files, otherwise the number of files. Recently read files are preferred,
+     *              then recently modified ones (right after the start nothing has been read yet).
+     * @return Completes when all files are rendered.
+     */
+    public CompletableFuture<Void> warmup(int limit) {
+        List<MarkdownFile> files = new ArrayList<>(index.get().getFiles().values());
+        if (limit >= 0 && limit < files.size()) {
+            RenderCache cache = RenderCache.getInstance();
+            files.sort(Comparator.comparingLong(cache::getLastAccess)
+                    .thenComparingLong(file -> file.getFile().lastModified()).reversed());
+            files = files.subList(0, limit);
+        }
+        List<MarkdownFile> selected = files;
+        return CompletableFuture.runAsync(() -> prerender(selected), renderPool);
+    }
+
+    /**
+     * Renders the files on all cores and waits until they are done.
+     */
+    private void prerender(Collection<MarkdownFile> files) {
+        if (files.isEmpty()) return;
+        long start = System.currentTimeMillis();
+
+        renderPool.submit(() -> files.parallelStream().forEach(file -> {
+            try {
+                file.getResult();
+            } catch (Exception e) {
+                logger.error("Can not render " + file.getUrl(), e);
+            }
+        })).join();
+        logger.info("Rendered " + files.size() + " files in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Brings the search index in line with the scanned files. The first scan builds it on all cores,
+     * later scans only index the files which have changed.
+     */
+    private void updateSearch(MarkdownIndex current, Draft draft) {
+        long start = System.currentTimeMillis();
+        if (current == MarkdownIndex.EMPTY) {
+            search = renderPool.submit(() -> SearchIndex.build(draft.files.values())).join();
+        } else {
+            List<MarkdownFile> changed = new ArrayList<>();
+            draft.files.forEach((file, markdown) -> {
+                if (current.getFiles().get(file) != markdown) changed.add(markdown);
+            });
+            current.getFiles().forEach((file, old) -> {
+                if (!draft.files.containsKey(file)) search.remove(old);
+            });
+            SearchIndex target = search;
+            renderPool.submit(() -> changed.parallelStream().forEach(target::add)).join();
         }
+        logger.info("Indexed " + search.size() + " files for the search in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void publish(Draft draft) {
+        MarkdownIndex current = index.get();
+        draft.tree.keepPages(current.getTree());
+        index.set(new MarkdownIndex(current.getVersion() + 1, draft.files, draft.urls, draft.indexFiles, draft.tree, draft.dropdown));
+    }
 
+    private void scanMarkdownFiles(File dir, Draft draft, MarkdownIndex current) {
+        if (!dir.isDirectory()) return;
 
         for (File file : Objects.requireNonNull(dir.listFiles())) {
-            if (file.isDirectory()) scanMarkdownFiles(file);
+            if (file.isDirectory()) scanMarkdownFiles(file, draft, current);
             else if (file.getName().endsWith(".md")) {
-                files.add(new MarkdownFile(file, rd));
+                MarkdownFile old = current.getFiles().get(file);
+                draft.files.put(file, old != null && old.isCurrent() ? old : new MarkdownFile(file, rd)); //Unchanged files keep their render result
             } else if (file.getName().equals(".mdIndex")) {
-                try {
-                    String redirect = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).get(0);
-
-                    String baseUrl = file.getParentFile().getAbsolutePath().substring(rd.getAbsolutePath().length())
-                            .replace(File.separator, "/").replace(" ", "-").toLowerCase();
-                    if (baseUrl.length() == 0) baseUrl = "/";
-                    indexFiles.put(baseUrl, redirect);
-                } catch (Exception e) {
-                    logger.error("Can not read index file at " + file.getAbsolutePath(), e);
-                }
+                readIndexFile(file, draft);
             }
         }
+    }
 
-        if (dir.equals(rd)) { //Scanning is done
-            logger.info("Files found: " + files.size());
-            logger.info("Indices:" + indexFiles.size());
+    private void readIndexFile(File file, Draft draft) {
+        try {
+            String redirect = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).get(0);
+            draft.indexFiles.put(getBaseUrl(file.getParentFile()), redirect);
+        } catch (Exception e) {
+            logger.error("Can not read index file at " + file.getAbsolutePath(), e);
         }
     }
 
-    private void generateDropdowns() {
-        if (rd.listFiles() == null) return;
+    private String getBaseUrl(File dir) {
+        String baseUrl = dir.getAbsolutePath().substring(rd.getAbsolutePath().length())
+                .replace(File.separator, "/").replace(" ", "-").toLowerCase();
+        return baseUrl.length() == 0 ? "/" : baseUrl;
+    }
+
+    private String generateDropdowns() {
+        if (rd.listFiles() == null) return "";
         List<String> folders = new ArrayList<>();
 
         for (File dir : rd.listFiles()) {
@@ -78,35 +247,107 @@ public class MarkdownFilesManager {
             String link = "/" + name.replace(" ", "-").toLowerCase();
             builder.append("<a class=\"dropdown-item\" href=\"").append(link).append("\">").append(name).append("</a>\n");
         });
-        dropdown = builder.toString().trim();
+        return builder.toString().trim();
     }
 
-    public Optional<MarkdownFile> getFile(String path) {
-        return files.stream().filter(f -> f.getUrl().equals(path)).findFirst();
+    /**
+     * @return The current snapshot. Use one snapshot per request to get consistent answers.
+     */
+    public MarkdownIndex getIndex() {
+        return index.get();
     }
 
-    public String getDropdown() {
-        return dropdown;
+    /**
+     * @return The version of the current snapshot.
+     */
+    public long getVersion() {
+        return index.get().getVersion();
     }
 
-    public List<MarkdownFile> getFolderOverview(String path) { //Filter to files matching path, sort them, then return them as a List.
-        return files.stream().filter(file -> file.getUrl().startsWith(path)).sorted(new MarkdownComparator()).collect(Collectors.toList());
+    /**
+     * @return The full-text index of all files. It is updated in place, a search always sees a consistent state.
+     */
+    public SearchIndex getSearch() {
+        return search;
     }
 
-    public String generateFolderHtml(List<MarkdownFile> files) {
-        StringBuilder builder = new StringBuilder("<h1>Ordnerübersicht</h1><ul>");
+    public Optional<MarkdownFile> getFile(String path) {
+        return index.get().getFile(path);
+    }
 
-        files.forEach(file -> builder.append("<li><a href=\"").append(file.getUrl()).append("\">").append(file.getUrl()).append("</a></li>"));
+    public String getDropdown() {
+        return index.get().getDropdown();
+    }
 
-        return builder.append("</ul>").toString().trim();
+    public List<MarkdownFile> getFolderOverview(String path) {
+        return index.get().getFolderOverview(path);
     }
 
     public boolean hasIndexFile(String path) {
         logger.debug("Checking index for path " + path);
-        return indexFiles.containsKey(path);
+        return index.get().hasIndexFile(path);
     }
 
     public String getRedirectPath(String path) {
-        return indexFiles.getOrDefault(path, "/");
+        return index.get().getRedirectPath(path);
+    }
+
+    /**
+     * Mutable copy of a snapshot, only used by the single writer.
+     */
+    private static class Draft {
+        private final LinkedHashMap<File, MarkdownFile> files;
+        private final Map<String, MarkdownFile> urls;
+        private final Map<String, String> indexFiles;
+        private final Set<MarkdownFile> added = new LinkedHashSet<>(); //New files of this batch, not yet in the tree
+        private final Set<MarkdownFile> removed = new HashSet<>(); //Files of the base snapshot which are gone or replaced
+        private final Set<String> lostUrls = new HashSet<>();
+        private FolderNode tree;
+        private String dropdown;
+
+        private Draft(MarkdownIndex base) {
+            files = new LinkedHashMap<>(base.getFiles());
+            urls = new HashMap<>(base.getUrls());
+            indexFiles = new HashMap<>(base.getIndexFiles());
+            tree = base.getTree();
+            dropdown = base.getDropdown();
+        }
+
+        /**
+         * Adds a new file or replaces the old version in place. Its url is taken if no other file has it,
+         * the tree is updated by {@link #finish()}.
+         */
+        private void add(MarkdownFile file) {
+            files.put(file.getFile(), file); //Keeps the position of the old version
+            added.add(file);
+            urls.putIfAbsent(file.getUrl(), file);
+        }
+
+        /**
+         * Takes the file out of the urls and the tree, the caller removes or replaces it in the files.
+         */
+        private void remove(MarkdownFile file) {
+            if (!added.remove(file)) removed.add(file);
+            if (urls.get(file.getUrl()) != file) return;
+
+            urls.remove(file.getUrl());
+            lostUrls.add(file.getUrl());
+        }
+
+        /**
+         * Brings the urls and the tree in line with all changes of the batch, once.
+         */
+        private void finish() {
+            if (!lostUrls.isEmpty()) { //Another file may have had the same url
+                files.values().forEach(file -> {
+                    if (lostUrls.contains(file.getUrl())) urls.putIfAbsent(file.getUrl(), file);
+                });
+            }
+            if (!removed.isEmpty()) {
+                FolderNode smaller = tree.without(removed);
+                tree = smaller == null ? FolderNode.build("/", Collections.emptyList()) : smaller;
+            }
+            tree = tree.with(added);
+        }
     }
 }
@@ -0,0 +1,102 @@
+package me.niklas.markdownserver.fs;
+
+import me.niklas.markdownserver.MarkdownFile;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * An immutable snapshot of all markdown files. A new snapshot is built next to the current one and published at once,
+ * so readers never see a half built index and never have to lock.
+ */
+public final class MarkdownIndex {
+
+    static final MarkdownIndex EMPTY = new MarkdownIndex(0, new LinkedHashMap<>(), new HashMap<>(), new HashMap<>(),
+            FolderNode.build("/", Collections.emptyList()), "");
+
+    private final long version;
+    private final Map<File, MarkdownFile> files; //Absolute file -> markdown file, in scan order
+    private final Map<String, MarkdownFile> urls; //Exact url -> file
+    private final Map<String, String> indexFiles;
+    private final FolderNode tree;
+    private final String dropdown;
+
+    MarkdownIndex(long version, LinkedHashMap<File, MarkdownFile> files, Map<String, MarkdownFile> urls,
+                  Map<String, String> indexFiles, FolderNode tree, String dropdown) {
+        this.version = version;
+        this.files = Collections.unmodifiableMap(files);
+        this.urls = Collections.unmodifiableMap(urls);
+        this.indexFiles = Collections.unmodifiableMap(indexFiles);
+        this.tree = tree;
+        this.dropdown = dropdown;
+    }
+
+    /**
+     * @return The version of this snapshot. It grows with every published change and can be used in cache keys.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    Map<File, MarkdownFile> getFiles() {
+        return files;
+    }
+
+    Map<String, MarkdownFile> getUrls() {
+        return urls;
+    }
+
+    Map<String, String> getIndexFiles() {
+        return indexFiles;
+    }
+
+    FolderNode getTree() {
+        return tree;
+    }
+
+    public Optional<MarkdownFile> getFile(String path) {
+        return Optional.ofNullable(urls.get(path));
+    }
+
+    public String getDropdown() {
+        return dropdown;
+    }
+
+    public List<MarkdownFile> getFolderOverview(String path) { //All files below the folder, already sorted while indexing
+        FolderNode node = tree.find(path);
+        return node == null ? Collections.emptyList() : node.getOverview();
+    }
+
+    /**
+     * @param path The path of the folder, without trailing slash (except for the root itself).
+     * @return The overview of the folder, or null if there are no markdown files below it.
+     */
+    public FolderPage getFolderPage(String path) {
+        FolderNode node = tree.find(path);
+        return node == null || node.getOverview().isEmpty() ? null : node.getPage();
+    }
+
+    /**
+     * Answers with the same exact lookups as a real request, without looking at any file list.
+     *
+     * @param path The requested path.
+     * @return Whether the path is a file, a folder containing files or a folder with an index file.
+     */
+    public boolean contains(String path) {
+        if (urls.containsKey(path)) return true;
+        String folder = path.length() > 1 && path.charAt(path.length() - 1) == '/' ? path.substring(0, path.length() - 1) : path;
+        return indexFiles.containsKey(folder) || tree.find(folder) != null;
+    }
+
+    public boolean hasIndexFile(String path) {
+        return indexFiles.containsKey(path);
+    }
+
+    public String getRedirectPath(String path) {
+        return indexFiles.getOrDefault(path, "/");
+    }
+
+    public int size() {
+        return files.size();
+    }
+}
@@ -0,0 +1,311 @@
+package me.niklas.markdownserver.fs;
+
+import me.niklas.markdownserver.MarkdownFile;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * Inverted index over the titles and texts of all markdown files, ranked with BM25.
+ * Postings are plain int arrays of (document, frequency) pairs, sorted by document because ids only grow.
+ * Removed documents are only marked and skipped, the postings are compacted once enough of them piled up.
+ */
+public class SearchIndex {
+
+    private static final int TITLE_WEIGHT = 5; //A word in the title counts like this many words in the text
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final List<Document> documents = new ArrayList<>(); //Index is the id, null if removed
+    private final Map<File, Integer> ids = new HashMap<>(); //By path, so a new version replaces the old one
+    private long totalLength;
+    private int removed;
+
+    /**
+     * Builds the index for many files at once, reading and tokenizing them in parallel.
+     *
+     * @param files The files.
+     * @return The index.
+     */
+    static SearchIndex build(Collection<MarkdownFile> files) {
+        SearchIndex index = new SearchIndex();
+        files.parallelStream()
+                .map(SearchIndex::analyze)
+                .collect(Collectors.toList()) //Keeps the order, ids are assigned sequentially below
+                .forEach(index::insert);
+        return index;
+    }
+
+    /**
+     * Adds a file, or replaces it if it is indexed already.
+     */
+    void add(MarkdownFile file) {
+        Document document = analyze(file);
+        lock.writeLock().lock();
+        try {
+            insert(document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(MarkdownFile file) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.remove(file.getFile());
+            if (id != null) drop(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param query    The words to search for.
+     * @param page     The page, starting at 0.
+     * @param pageSize The number of hits per page.
+     * @return The hits of this page, best first, and the total number of hits.
+     */
+    public Result search(String query, int page, int pageSize) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query).keySet());
+        lock.readLock().lock();
+        try {
+            int count = documents.size() - removed;
+            if (terms.isEmpty() || count == 0) return new Result(Collections.emptyList(), 0);
+            float averageLength = Math.max(1f, (float) totalLength / count);
+
+            float[] scores = new float[documents.size()];
+            int[] touched = new int[16];
+            int touchedCount = 0;
+
+            for (String term : terms) {
+                Postings list = postings.get(term);
+                if (list == null) continue;
+                float idf = (float) Math.log(1 + (count - list.documents + 0.5) / (list.documents + 0.5));
+
+                for (int i = 0; i < list.size; i += 2) {
+                    int id = list.data[i];
+                    Document document = documents.get(id);
+                    if (document == null) continue;
+
+                    int frequency = list.data[i + 1];
+                    float norm = K1 * (1 - B + B * document.length / averageLength);
+                    if (scores[id] == 0) {
+                        if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+                        touched[touchedCount++] = id;
+                    }
+                    scores[id] += idf * frequency * (K1 + 1) / (frequency + norm);
+                }
+            }
+
+            float[] finalScores = scores;
+            List<Integer> ranked = new ArrayList<>(touchedCount);
+            for (int i = 0; i < touchedCount; i++) ranked.add(touched[i]);
+            ranked.sort((a, b) -> Float.compare(finalScores[b], finalScores[a]));
+
+            List<Hit> hits = new ArrayList<>();
+            for (int i = page * pageSize; i < Math.min(ranked.size(), (page + 1) * pageSize); i++) {
+                Document document = documents.get(ranked.get(i));
+                hits.add(new Hit(document.file, document.title, scores[ranked.get(i)]));
+            }
+            return new Result(hits, ranked.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of indexed files.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size() - removed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(Document document) {
+        Integer old = ids.remove(document.file.getFile());
+        if (old != null) drop(old);
+
+        int id = documents.size();
+        documents.add(document);
+        ids.put(document.file.getFile(), id);
+        totalLength += document.length;
+        Postings[] lists = new Postings[document.terms.size()];
+        int[] next = {0};
+        document.terms.forEach((term, frequency) -> {
+            Postings list = postings.computeIfAbsent(term, key -> new Postings());
+            list.add(id, frequency);
+            lists[next[0]++] = list;
+        });
+        document.postings = lists; //Kept to correct the document frequencies when the document is dropped
+        document.terms = null; //Only needed until the postings are written
+    }
+
+    private void drop(int id) {
+        Document document = documents.get(id);
+        totalLength -= document.length;
+        for (Postings list : document.postings) list.documents--; //The entries themselves stay until the next compaction
+        documents.set(id, null);
+        if (++removed > 1000 && removed > documents.size() / 4) compact();
+    }
+
+    /**
+     * Drops removed documents from the postings and assigns new ids.
+     */
+    private void compact() {
+        int[] newIds = new int[documents.size()];
+        List<Document> live = new ArrayList<>(documents.size() - removed);
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            newIds[i] = document == null ? -1 : live.size();
+            if (document != null) {
+                ids.put(document.file.getFile(), live.size());
+                live.add(document);
+            }
+        }
+
+        Iterator<Postings> iterator = postings.values().iterator();
+        while (iterator.hasNext()) {
+            Postings list = iterator.next();
+            int size = 0;
+            for (int i = 0; i < list.size; i += 2) {
+                int id = newIds[list.data[i]];
+                if (id == -1) continue;
+                list.data[size++] = id;
+                list.data[size++] = list.data[i + 1];
+            }
+            list.size = size;
+            list.documents = size / 2;
+            if (size == 0) iterator.remove();
+            else list.data = Arrays.copyOf(list.data, size);
+        }
+
+        documents.clear();
+        documents.addAll(live);
+        removed = 0;
+    }
+
+    private static Document analyze(MarkdownFile file) {
+        CharSequence source = file.readSource();
+        String title = findTitle(source, file);
+
+        Map<String, Integer> terms = tokenize(source);
+        int length = terms.values().stream().mapToInt(Integer::intValue).sum();
+        tokenize(title).forEach((term, frequency) -> terms.merge(term, frequency * TITLE_WEIGHT, Integer::sum));
+        return new Document(file, title, length, terms);
+    }
+
+    /**
+     * @return The first line which is not empty, like the title the parser would find for most files.
+     */
+    private static String findTitle(CharSequence source, MarkdownFile file) {
+        int start = 0;
+        for (int i = 0; i <= source.length(); i++) {
+            if (i == source.length() || source.charAt(i) == '\n') {
+                String line = source.subSequence(start, i).toString().replace("#", "").trim();
+                if (line.length() > 0) return line;
+                start = i + 1;
+            }
+        }
+        return file.getUrl();
+    }
+
+    /**
+     * Splits the text into lower case words of letters and digits, markdown syntax is dropped on the way.
+     *
+     * @return The words and how often they occur.
+     */
+    static Map<String, Integer> tokenize(CharSequence text) {
+        Map<String, Integer> terms = new HashMap<>();
+        StringBuilder word = new StringBuilder();
+
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < 64) word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (word.length() > 1) terms.merge(word.toString(), 1, Integer::sum);
+                word.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static final class Postings {
+        private int[] data = new int[4]; //document, frequency, document, frequency, ...
+        private int size;
+        private int documents; //Live documents, the entries of dropped ones are not counted
+
+        private void add(int document, int frequency) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = document;
+            data[size++] = frequency;
+            documents++;
+        }
+    }
+
+    private static final class Document {
+        private final MarkdownFile file;
+        private final String title;
+        private final int length;
+        private Map<String, Integer> terms;
+        private Postings[] postings; //The lists containing this document
+
+        private Document(MarkdownFile file, String title, int length, Map<String, Integer> terms) {
+            this.file = file;
+            this.title = title;
+            this.length = length;
+            this.terms = terms;
+        }
+    }
+
+    public static final class Result {
+        private final List<Hit> hits;
+        private final int total;
+
+        private Result(List<Hit> hits, int total) {
+            this.hits = hits;
+            this.total = total;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    public static final class Hit {
+        private final MarkdownFile file;
+        private final String title;
+        private final float score;
+
+        private Hit(MarkdownFile file, String title, float score) {
+            this.file = file;
+            this.title = title;
+            this.score = score;
+        }
+
+        public MarkdownFile getFile() {
+            return file;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package me.niklas.markdownserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A piece of a gzip stream which can be compressed once and spliced into many responses.
+ * Every segment is deflated on its own and ends on a byte boundary without the final block,
+ * so segments can be concatenated in any order. {@link #write(OutputStream, GzipSegment...)} adds
+ * the gzip header and the trailer, the checksum of the whole stream is combined from the segments.
+ */
+public final class GzipSegment {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] FINAL_BLOCK = {3, 0}; //Empty block with fixed codes and BFINAL set
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    private final byte[] bytes; //Deflated blocks, or the plain data of a stored segment. Null if kept off the heap
+    private final ByteBuffer direct; //The deflated blocks outside the heap, or null
+    private final boolean stored;
+    private final int length; //Uncompressed length
+    private final int crc;
+    private final int[] shift; //Moves a checksum over length zero bytes, see zlib's crc32_combine
+
+    private GzipSegment(byte[] bytes, boolean stored, int length, int crc, int[] shift) {
+        this(bytes, null, stored, length, crc, shift);
+    }
+
+    private GzipSegment(byte[] bytes, ByteBuffer direct, boolean stored, int length, int crc, int[] shift) {
+        this.bytes = bytes;
+        this.direct = direct;
+        this.stored = stored;
+        this.length = length;
+        this.crc = crc;
+        this.shift = shift;
+    }
+
+    /**
+     * Compresses the input. This is expensive and should be done once per content.
+     *
+     * @param input The uncompressed bytes.
+     * @return The compressed segment.
+     */
+    public static GzipSegment compress(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 3 + 64);
+        byte[] buffer = new byte[8192];
+        try {
+            deflater.setInput(input);
+            while (!deflater.needsInput()) {
+                out.write(buffer, 0, deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH));
+            }
+            int count;
+            do { //A sync flush ends the segment on a byte boundary and keeps the stream open
+                count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, count);
+            } while (count == buffer.length);
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(input);
+        return new GzipSegment(out.toByteArray(), false, input.length, (int) crc.getValue(), shiftOperator(input.length));
+    }
+
+    public static GzipSegment compress(String input) {
+        return compress(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Wraps small, per request data without compressing it.
+     *
+     * @param input The data.
+     * @return A segment which is written as stored blocks.
+     */
+    public static GzipSegment stored(byte[] input) {
+        return new GzipSegment(input, true, input.length, 0, null);
+    }
+
+    public static GzipSegment stored(String input) {
+        return stored(input == null ? new byte[0] : input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The same segment with the compressed data moved to a direct buffer, see {@link OffHeap}.
+     * Stored segments are per request data and stay on the heap.
+     */
+    public GzipSegment offHeap() {
+        if (stored || direct != null) return this;
+        return new GzipSegment(null, OffHeap.copy(bytes), false, length, crc, shift);
+    }
+
+    /**
+     * @param segments The segments.
+     * @return The length of the complete gzip stream, usable as Content-Length.
+     */
+    public static long size(GzipSegment... segments) {
+        long size = HEADER.length + FINAL_BLOCK.length + 8;
+        for (GzipSegment segment : segments) size += segment.getCompressedSize();
+        return size;
+    }
+
+    /**
+     * Writes a complete gzip stream consisting of the given segments.
+     *
+     * @param out      The stream, it is not closed.
+     * @param segments The segments in order.
+     * @throws IOException If the stream can not be written.
+     */
+    public static void write(OutputStream out, GzipSegment... segments) throws IOException {
+        out.write(HEADER);
+        int crc = 0;
+        long length = 0;
+
+        for (GzipSegment segment : segments) {
+            if (segment.stored) {
+                writeStored(out, segment.bytes);
+                crc = update(crc, segment.bytes);
+            } else if (segment.direct != null) {
+                OffHeap.write(out, segment.direct.duplicate());
+                crc = multiply(segment.shift, crc) ^ segment.crc;
+            } else {
+                out.write(segment.bytes);
+                crc = multiply(segment.shift, crc) ^ segment.crc;
+            }
+            length += segment.length;
+        }
+
+        out.write(FINAL_BLOCK);
+        writeInt(out, crc);
+        writeInt(out, (int) length);
+    }
+
+    private static void writeStored(OutputStream out, byte[] data) throws IOException {
+        int offset = 0;
+        do {
+            int count = Math.min(65535, data.length - offset);
+            out.write(0); //Not final, stored. The remaining bits are padding
+            out.write(count & 0xff);
+            out.write(count >>> 8);
+            out.write(~count & 0xff);
+            out.write((~count >>> 8) & 0xff);
+            out.write(data, offset, count);
+            offset += count;
+        } while (offset < data.length);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+
+    private static int update(int crc, byte[] data) {
+        int c = ~crc;
+        for (byte b : data) c = CRC_TABLE[(c ^ b) & 0xff] ^ (c >>> 8);
+        return ~c;
+    }
+
+    private static int multiply(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static int[] square(int[] matrix) {
+        int[] result = new int[32];
+        for (int i = 0; i < 32; i++) result[i] = multiply(matrix, matrix[i]);
+        return result;
+    }
+
+    /**
+     * Builds the operator which appends length zero bytes to a checksum, by squaring the single zero bit operator.
+     */
+    private static int[] shiftOperator(long length) {
+        int[] result = new int[32];
+        for (int i = 0; i < 32; i++) result[i] = 1 << i; //Identity
+
+        int[] operator = new int[32];
+        operator[0] = 0xedb88320;
+        for (int i = 1; i < 32; i++) operator[i] = 1 << (i - 1);
+        operator = square(square(square(operator))); //One zero byte
+
+        while (length != 0) {
+            if ((length & 1) != 0) {
+                int[] current = result;
+                int[] next = new int[32];
+                for (int i = 0; i < 32; i++) next[i] = multiply(operator, current[i]);
+                result = next;
+            }
+            length >>>= 1;
+            if (length != 0) operator = square(operator);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of bytes this segment adds to a gzip stream.
+     */
+    public long getCompressedSize() {
+        if (direct != null) return direct.capacity();
+        if (!stored) return bytes.length;
+        return bytes.length + 5L * Math.max(1, (bytes.length + 65534) / 65535);
+    }
+
+    /**
+     * @return The length of the uncompressed data.
+     */
+    public int getLength() {
+        return length;
+    }
+}
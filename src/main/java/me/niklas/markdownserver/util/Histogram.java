@@ -0,0 +1,55 @@
+package me.niklas.markdownserver.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations counted in fixed buckets, cheap enough to be updated on every request.
+ */
+public class Histogram {
+
+    static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10}; //Seconds
+    private static final long[] BOUNDS = new long[BUCKETS.length]; //The same in nanoseconds
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) BOUNDS[i] = (long) (BUCKETS[i] * 1e9);
+    }
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1]; //Not cumulative, the last one is +Inf
+    private final LongAdder sum = new LongAdder(); //Nanoseconds
+
+    Histogram() {
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    /**
+     * @param nanos The duration in nanoseconds.
+     */
+    public void observe(long nanos) {
+        int i = 0;
+        while (i < BOUNDS.length && nanos > BOUNDS[i]) i++;
+        counts[i].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Observes the time since the start.
+     *
+     * @param start The result of {@link System#nanoTime()} at the start.
+     */
+    public void since(long start) {
+        observe(System.nanoTime() - start);
+    }
+
+    /**
+     * @return The count of every bucket, the last one is +Inf.
+     */
+    long[] getCounts() {
+        long[] result = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) result[i] = counts[i].sum();
+        return result;
+    }
+
+    double getSum() {
+        return sum.sum() / 1e9;
+    }
+}
@@ -1,5 +1,6 @@
 package me.niklas.markdownserver.util;
 
+import me.niklas.markdownserver.MarkdownConfig;
 import spark.Request;
 
 /**
@@ -9,14 +10,22 @@ public class IpUtils {
 
     /**
      * Use this method to compensate the use of reverse proxies.
+     * "X-Forwarded-For" is only trusted if the request comes from one of {@link MarkdownConfig#TRUSTED_PROXIES},
+     * otherwise every client could choose its own address, e.g. to get around the login limit.
      *
      * @param request The request of the client, it will contain "X-Forwarded-For" if it was sent through a reverse proxy.
      * @return The Client's IP address.
      */
     public static String getIp(Request request) {
-        if (request.headers().contains("X-Forwarded-For")) {
-            return request.headers("X-Forwarded-For");
+        String ip = request.ip();
+        String forwarded = request.headers("X-Forwarded-For");
+        if (forwarded == null) return ip;
+
+        //Every proxy appends the address it has seen, so walk back until the first one not sent by a trusted proxy
+        String[] chain = forwarded.split(",");
+        for (int i = chain.length - 1; i >= 0 && MarkdownConfig.TRUSTED_PROXIES.contains(ip); i--) {
+            ip = chain[i].trim();
         }
-        return request.ip();
+        return ip;
     }
 }
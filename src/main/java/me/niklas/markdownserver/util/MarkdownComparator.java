@@ -13,14 +13,15 @@ public class MarkdownComparator implements Comparator<MarkdownFile> {
         String u1 = o1.getUrl();
         String u2 = o2.getUrl();
 
-        if (slashCount(u1) != slashCount(u2)) {
-            return Integer.compare(slashCount(u1), slashCount(u2));
-        }
-
-        return u1.compareTo(u2);
+        int depth = Integer.compare(slashCount(u1), slashCount(u2));
+        return depth != 0 ? depth : u1.compareTo(u2);
     }
 
-    private int slashCount(String input) {
-        return input.length() - input.replace("/", "").length();
+    private int slashCount(String input) { //Counted in place, the former replace() created a new String per call
+        int count = 0;
+        for (int i = 0; i < input.length(); i++) {
+            if (input.charAt(i) == '/') count++;
+        }
+        return count;
     }
 }
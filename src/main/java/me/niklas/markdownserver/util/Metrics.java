@@ -0,0 +1,111 @@
+package me.niklas.markdownserver.util;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * All metrics of the server, written in the Prometheus text format.
+ * Histograms are created on first use and kept forever, so callers can hold on to them.
+ */
+public class Metrics {
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * @param name   The name of the metric, e.g. http_request_duration_seconds.
+     * @param help   The description.
+     * @param labels Pairs of label names and values, e.g. "route", "/login".
+     * @return The histogram of this name and these labels.
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        Family family = families.computeIfAbsent(name, key -> new Family("histogram", help));
+        return (Histogram) family.series.computeIfAbsent(formatLabels(labels), key -> new Histogram());
+    }
+
+    /**
+     * Registers a value which is read when the metrics are written.
+     *
+     * @param name  The name of the metric, a counter should end with _total.
+     * @param help  The description.
+     * @param value Reads the current value.
+     */
+    public static void gauge(String name, String help, Supplier<Number> value) {
+        register(name, "gauge", help, value);
+    }
+
+    public static void counter(String name, String help, Supplier<Number> value) {
+        register(name, "counter", help, value);
+    }
+
+    private static void register(String name, String type, String help, Supplier<Number> value) {
+        families.computeIfAbsent(name, key -> new Family(type, help)).series.put("", value);
+    }
+
+    /**
+     * @return All metrics in the Prometheus text format.
+     */
+    public static String write() {
+        StringBuilder builder = new StringBuilder();
+        new TreeMap<>(families).forEach((name, family) -> {
+            builder.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            new TreeMap<>(family.series).forEach((labels, series) -> {
+                if (series instanceof Histogram) writeHistogram(builder, name, labels, (Histogram) series);
+                else {
+                    Object value = ((Supplier<?>) series).get();
+                    builder.append(name).append(wrap(labels)).append(' ')
+                            .append(format(value instanceof Number ? ((Number) value).doubleValue() : 0)).append('\n');
+                }
+            });
+        });
+        return builder.toString();
+    }
+
+    private static void writeHistogram(StringBuilder builder, String name, String labels, Histogram histogram) {
+        long[] counts = histogram.getCounts();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < Histogram.BUCKETS.length ? format(Histogram.BUCKETS[i]) : "+Inf";
+            builder.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        builder.append(name).append("_sum").append(wrap(labels)).append(' ').append(format(histogram.getSum())).append('\n');
+        builder.append(name).append("_count").append(wrap(labels)).append(' ').append(cumulative).append('\n');
+    }
+
+    private static String formatLabels(String... labels) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String wrap(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    private static class Family {
+        private final String type;
+        private final String help;
+        private final Map<String, Object> series = new ConcurrentHashMap<>(); //Labels to a histogram or a supplier
+
+        private Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
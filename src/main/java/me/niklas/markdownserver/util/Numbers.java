@@ -12,4 +12,12 @@ public class Numbers {
             return defaultValue;
         }
     }
+
+    public static int parseInt(String input, int defaultValue) {
+        try {
+            return Integer.parseInt(input);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
 }
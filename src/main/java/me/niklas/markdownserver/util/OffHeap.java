@@ -0,0 +1,81 @@
+package me.niklas.markdownserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Direct buffers for rendered pages. Their content lives outside the heap, so the garbage collector neither
+ * copies nor scans it, and the socket can send it without copying it into a temporary direct buffer first.
+ * The memory is freed when the buffer object is collected.
+ */
+public class OffHeap {
+
+    private OffHeap() {
+    }
+
+    /**
+     * @param bytes The data.
+     * @return A read-only direct buffer with a copy of the data.
+     */
+    public static ByteBuffer copy(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param text The text.
+     * @return A read-only direct buffer with the text encoded as UTF-8.
+     */
+    public static ByteBuffer encode(String text) {
+        return copy(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param buffer The UTF-8 encoded text, its position is not changed.
+     * @return The text.
+     */
+    public static String decode(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer. Direct buffers are handed to the stream as they are if it is also a channel,
+     * everything else is copied in chunks.
+     *
+     * @param out    The stream, it is not closed.
+     * @param buffer The data, its position is moved to the limit.
+     * @throws IOException If the stream can not be written.
+     */
+    public static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.isDirect() && out instanceof WritableByteChannel) {
+            ((WritableByteChannel) out).write(buffer);
+            buffer.position(buffer.limit()); //Not every channel moves it
+        } else if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(8192, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+    }
+
+    /**
+     * @return The bytes of all direct buffers of the JVM, including the ones of Jetty.
+     */
+    public static long getUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,125 @@
+package me.niklas.markdownserver.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One token bucket per key, e.g. per IP address. A full bucket allows a burst, afterwards the tokens come back at a fixed rate.
+ * The number of buckets is capped, a new key beyond it replaces the fullest of a few sampled buckets.
+ */
+public class RateLimiter {
+
+    private static final int MAX_KEYS = 10000; //Buckets kept at most, full ones are dropped once this is reached
+    private static final int SAMPLES = 8; //Buckets looked at to find one to evict
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder throttled = new LongAdder();
+    private final AtomicLong lastSweep;
+    private final int capacity;
+    private final long refillNanos; //Time until one token comes back
+
+    /**
+     * @param perMinute The number of tokens per minute, also the size of a burst.
+     */
+    public RateLimiter(int perMinute) {
+        this.capacity = Math.max(1, perMinute);
+        this.refillNanos = 60_000_000_000L / capacity;
+        this.lastSweep = new AtomicLong(System.nanoTime() - refillNanos);
+    }
+
+    /**
+     * @param key The key, e.g. the IP address of the client.
+     * @return Whether a token was left. If not, the request should be answered with 429.
+     */
+    public boolean tryAcquire(String key) {
+        if (key == null) key = "";
+        long now = System.nanoTime();
+        if (buckets.size() >= MAX_KEYS) {
+            long last = lastSweep.get();
+            if (now - last >= refillNanos && lastSweep.compareAndSet(last, now)) sweep(now); //One thread, once per refill interval
+        }
+
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_KEYS) evict(now);
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(capacity, now));
+        }
+        synchronized (bucket) {
+            bucket.refill(now);
+            if (bucket.tokens > 0) {
+                bucket.tokens--;
+                return true;
+            }
+        }
+        throttled.increment();
+        return false;
+    }
+
+    /**
+     * @return The seconds until the next token comes back, for the Retry-After header.
+     */
+    public long getRetryAfter() {
+        return Math.max(1, refillNanos / 1_000_000_000L);
+    }
+
+    /**
+     * @return The number of requests which were refused.
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * Drops the buckets which are full again, they behave exactly like new ones.
+     */
+    private void sweep(long now) {
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                bucket.refill(now);
+                return bucket.tokens == capacity;
+            }
+        });
+    }
+
+    /**
+     * Makes room for a new key by dropping the fullest of a few buckets. A client which did not log in recently
+     * loses nothing by that, a drained bucket is only dropped if every sampled one is drained.
+     */
+    private void evict(long now) {
+        Map.Entry<String, Bucket> victim = null;
+        int most = -1;
+        int seen = 0;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            int tokens;
+            synchronized (entry.getValue()) {
+                entry.getValue().refill(now);
+                tokens = entry.getValue().tokens;
+            }
+            if (tokens > most) {
+                victim = entry;
+                most = tokens;
+            }
+            if (++seen == SAMPLES || most == capacity) break;
+        }
+        if (victim != null) buckets.remove(victim.getKey(), victim.getValue());
+    }
+
+    private final class Bucket {
+        private int tokens;
+        private long updated;
+
+        private Bucket(int tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+
+        private void refill(long now) {
+            long gained = (now - updated) / refillNanos;
+            if (gained <= 0) return;
+            tokens = (int) Math.min(capacity, tokens + gained);
+            updated = tokens == capacity ? now : updated + gained * refillNanos;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package me.niklas.markdownserver.web;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Entity tags and conditional requests, shared by the pages and the static files.
+ */
+class HttpCaching {
+
+    private static final String GZIP_SUFFIX = "-gz";
+
+    /**
+     * Sets the validators and checks the conditional headers of the request.
+     * The client has to revalidate the response every time.
+     *
+     * @param request      The request of the client.
+     * @param response     The response the validators are written to.
+     * @param etag         The entity tag of the page, without quotes. See {@link #variant} for compressed responses.
+     * @param lastModified The modification time of the content in milliseconds, 0 if unknown.
+     * @param personalized Whether the page also depends on the user. Only the entity tag covers that,
+     *                     so If-Modified-Since alone never leads to a 304.
+     * @return Whether the client already has this version and a 304 can be sent.
+     */
+    static boolean isNotModified(Request request, Response response, String etag, long lastModified, boolean personalized) {
+        String quoted = "\"" + etag + "\"";
+        response.header("ETag", quoted);
+        response.header("Cache-Control", "private, no-cache");
+        if (lastModified > 0) response.raw().setDateHeader("Last-Modified", lastModified);
+
+        String ifNoneMatch = request.headers("If-None-Match");
+        if (ifNoneMatch != null) { //If-Modified-Since has to be ignored when If-None-Match is present
+            String plain = plain(etag);
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*")) return true;
+                if (tag.length() > 1 && tag.charAt(0) == '"' && plain(tag.substring(1, tag.length() - 1)).equals(plain)) return true; //Either encoding
+            }
+            return false;
+        }
+
+        if (lastModified <= 0 || personalized) return false;
+        try {
+            long since = request.raw().getDateHeader("If-Modified-Since");
+            return since != -1 && lastModified / 1000 <= since / 1000; //HTTP dates have a precision of seconds
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The compressed and the uncompressed response are different bytes, so they must not share a strong entity tag.
+     *
+     * @param etag The entity tag of the uncompressed response.
+     * @param gzip Whether the response is gzip encoded.
+     * @return The entity tag of the response.
+     */
+    static String variant(String etag, boolean gzip) {
+        return gzip ? etag + GZIP_SUFFIX : etag;
+    }
+
+    /**
+     * @return The entity tag of the uncompressed variant.
+     */
+    private static String plain(String etag) {
+        return etag.endsWith(GZIP_SUFFIX) ? etag.substring(0, etag.length() - GZIP_SUFFIX.length()) : etag;
+    }
+
+    /**
+     * @param etag     The entity tag of the content.
+     * @param username The user the page is rendered for, the page contains the name.
+     * @param shell    The tags of the navigation bar and the page shell, see {@link Navbar#tag} and {@link PageShell#getTag()}.
+     * @return The entity tag of the personalized page.
+     */
+    static String pageTag(String etag, String username, String shell) {
+        return etag + "-" + Integer.toHexString(username == null ? 0 : username.hashCode()) + "-" + shell;
+    }
+
+    /**
+     * @param request The request of the client.
+     * @return Whether the client accepts gzip encoded responses.
+     */
+    static boolean acceptsGzip(Request request) {
+        String accept = request.headers("Accept-Encoding");
+        if (accept == null) return false;
+
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+}
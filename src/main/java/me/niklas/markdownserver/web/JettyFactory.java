@@ -0,0 +1,106 @@
+package me.niklas.markdownserver.web;
+
+import me.niklas.markdownserver.MarkdownConfig;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Creates the Jetty server with the thread pool and connector settings of configuration.properties,
+ * Spark itself only knows the number of threads.
+ */
+class JettyFactory implements JettyServerFactory {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private volatile ThreadPool pool;
+
+    /**
+     * Called by Spark with its own defaults, which are replaced by the configured values.
+     */
+    @Override
+    public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+        return create(createThreadPool());
+    }
+
+    @Override
+    public Server create(ThreadPool threadPool) {
+        pool = threadPool;
+        Server server = new Server(threadPool) {
+            @Override
+            public void setConnectors(Connector[] connectors) { //Spark creates the connector without acceptors and selectors
+                for (int i = 0; i < connectors.length; i++) {
+                    if (connectors[i] instanceof ServerConnector) connectors[i] = configure((ServerConnector) connectors[i]);
+                }
+                super.setConnectors(connectors);
+            }
+        };
+        if (threadPool instanceof VirtualThreadPool) server.addLifeCycleListener((VirtualThreadPool) threadPool);
+        return server;
+    }
+
+    private ThreadPool createThreadPool() {
+        if (MarkdownConfig.VIRTUAL_THREADS) {
+            ThreadPool virtual = VirtualThreadPool.create();
+            if (virtual != null) {
+                logger.info("Request threads: virtual, one per request");
+                return virtual;
+            }
+            logger.warn("Virtual threads are not available on Java " + System.getProperty("java.version") + ", using the thread pool");
+        }
+
+        int max = Math.max(1, MarkdownConfig.MAX_THREADS);
+        int min = Math.max(1, Math.min(max, MarkdownConfig.MIN_THREADS));
+        BlockingQueue<Runnable> queue = MarkdownConfig.REQUEST_QUEUE > 0
+                ? new ArrayBlockingQueue<>(MarkdownConfig.REQUEST_QUEUE) //Full: Jetty closes the new connection instead of letting it wait
+                : new BlockingArrayQueue<>(min, min); //Unbounded, like the default pool
+        QueuedThreadPool threadPool = new QueuedThreadPool(max, min, MarkdownConfig.THREAD_IDLE_TIMEOUT, queue);
+        threadPool.setName("Request");
+        logger.info("Request threads: " + min + " to " + max + ", queue: " + (MarkdownConfig.REQUEST_QUEUE > 0 ? MarkdownConfig.REQUEST_QUEUE : "unbounded"));
+        return threadPool;
+    }
+
+    private ServerConnector configure(ServerConnector connector) {
+        if (MarkdownConfig.ACCEPTORS < 0 && MarkdownConfig.SELECTORS < 0) return connector; //Both chosen by Jetty
+
+        ServerConnector configured = new ServerConnector(connector.getServer(), MarkdownConfig.ACCEPTORS, MarkdownConfig.SELECTORS,
+                connector.getConnectionFactories().toArray(new ConnectionFactory[0]));
+        configured.setHost(connector.getHost());
+        configured.setPort(connector.getPort());
+        configured.setIdleTimeout(connector.getIdleTimeout());
+        return configured;
+    }
+
+    /**
+     * @return The threads of the pool, virtual threads included.
+     */
+    int getThreads() {
+        ThreadPool threadPool = pool;
+        return threadPool == null ? 0 : threadPool.getThreads();
+    }
+
+    /**
+     * @return The threads waiting for work.
+     */
+    int getIdleThreads() {
+        ThreadPool threadPool = pool;
+        return threadPool == null ? 0 : threadPool.getIdleThreads();
+    }
+
+    /**
+     * @return The tasks waiting for a thread, always 0 with virtual threads.
+     */
+    int getQueueSize() {
+        ThreadPool threadPool = pool;
+        return threadPool instanceof QueuedThreadPool ? ((QueuedThreadPool) threadPool).getQueueSize() : 0;
+    }
+}
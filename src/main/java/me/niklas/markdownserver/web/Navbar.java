@@ -0,0 +1,73 @@
+package me.niklas.markdownserver.web;
+
+import me.niklas.markdownserver.MarkdownConfig;
+import me.niklas.markdownserver.fs.MarkdownIndex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The navigation bar, rendered into every page on the server instead of being loaded by nav.js.
+ * Apart from the username it only depends on the dropdown of the top level folders and on whether the user is an admin,
+ * so it is rendered once per dropdown and role. Saving a file does not change it. Per request only the username is spliced in.
+ */
+class Navbar {
+
+    private final Templates templates;
+    private volatile Rendered rendered = new Rendered(null, null, null);
+
+    Navbar(Templates templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * @param index The snapshot the page is served from.
+     * @param admin Whether the user is an admin.
+     * @return The navigation bar with the key "username".
+     */
+    PageShell get(MarkdownIndex index, boolean admin) {
+        Rendered current = rendered;
+        if (!index.getDropdown().equals(current.dropdown)) current = render(index);
+        return admin ? current.admin : current.user;
+    }
+
+    /**
+     * @return A tag which changes whenever the navigation bar of this user changes, for the validators of a page.
+     * It covers the dropdown, the role and the template.
+     */
+    String tag(MarkdownIndex index, boolean admin) {
+        return get(index, admin).getTag();
+    }
+
+    private synchronized Rendered render(MarkdownIndex index) {
+        Rendered current = rendered;
+        if (index.getDropdown().equals(current.dropdown)) return current; //Another request was faster
+
+        current = new Rendered(index.getDropdown(), render(index, false), render(index, true));
+        rendered = current;
+        return current;
+    }
+
+    private PageShell render(MarkdownIndex index, boolean admin) {
+        Map<String, Object> model = new HashMap<>();
+        model.put("servername", MarkdownConfig.SERVER_NAME);
+        model.put("dropdownName", MarkdownConfig.DROPDOWN_NAME);
+        model.put("dropdownContent", index.getDropdown());
+        model.put("notAdminDisabled", admin ? "active" : "disabled");
+        model.put("notAdminElement", admin ? "" : "aria-disabled=\"true\"");
+        return PageShell.of(templates, "nav.html", model, "username");
+    }
+
+    private static class Rendered {
+
+        private final String dropdown;
+        private final PageShell user;
+        private final PageShell admin;
+
+        private Rendered(String dropdown, PageShell user, PageShell admin) {
+            this.dropdown = dropdown;
+            this.user = user;
+            this.admin = admin;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package me.niklas.markdownserver.web;
+
+import me.niklas.markdownserver.util.GzipSegment;
+import me.niklas.markdownserver.util.OffHeap;
+import spark.ModelAndView;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A template rendered once with placeholders and cut into static parts.
+ * The static parts are compressed once, per request only the values have to be spliced in.
+ */
+class PageShell {
+
+    private static final char MARKER = '\u0001';
+
+    private final String[] keys; //The keys in the order they appear in the template
+    private final String[] texts; //keys.length + 1 parts around the values
+    private final byte[][] encoded; //The same parts as UTF-8
+    private final GzipSegment[] parts; //The same parts, compressed
+    private final String tag;
+
+    private PageShell(String[] keys, String[] texts, GzipSegment[] parts) {
+        this.keys = keys;
+        this.texts = texts;
+        this.encoded = Arrays.stream(texts).map(text -> text.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        this.parts = parts;
+
+        CRC32 crc = new CRC32();
+        for (byte[] part : encoded) crc.update(part);
+        this.tag = Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @param templates The engine.
+     * @param template  The name of the template.
+     * @param keys      The model keys which are filled per page.
+     * @return The shell.
+     */
+    static PageShell of(Templates templates, String template, String... keys) {
+        return of(templates, template, Collections.emptyMap(), keys);
+    }
+
+    /**
+     * @param templates The engine.
+     * @param template  The name of the template.
+     * @param fixed     The model values which are the same for every use of this shell.
+     * @param keys      The model keys which are filled per page.
+     * @return The shell.
+     */
+    static PageShell of(Templates templates, String template, Map<String, Object> fixed, String... keys) {
+        Map<String, Object> model = new HashMap<>(fixed);
+        for (String key : keys) model.put(key, MARKER + key + MARKER);
+        String rendered = templates.render(new ModelAndView(model, template));
+
+        List<String> found = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = rendered.indexOf(MARKER, start)) != -1) {
+            int close = rendered.indexOf(MARKER, open + 1);
+            found.add(rendered.substring(open + 1, close));
+            texts.add(rendered.substring(start, open));
+            start = close + 1;
+        }
+        texts.add(rendered.substring(start));
+        GzipSegment[] parts = texts.stream().map(GzipSegment::compress).toArray(GzipSegment[]::new);
+        return new PageShell(found.toArray(new String[0]), texts.toArray(new String[0]), parts);
+    }
+
+    /**
+     * @return A hash of the static parts. It changes with the template and with the hashed asset names rewritten into it,
+     * so cached pages are not revalidated after a deployment with new styles or scripts.
+     */
+    String getTag() {
+        return tag;
+    }
+
+    /**
+     * @param values The values of the keys, missing ones are left empty.
+     * @return The uncompressed text.
+     */
+    String render(Map<String, String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            builder.append(texts[i]);
+            String value = values.get(keys[i]);
+            if (value != null) builder.append(value);
+        }
+        return builder.append(texts[texts.length - 1]).toString();
+    }
+
+    /**
+     * Writes the uncompressed page and commits the response, without building it as one String first.
+     * The parts of the shell are encoded once, so only the values are encoded per request.
+     *
+     * @param response The response.
+     * @param values   The values of the keys as Strings, or as ByteBuffers already encoded as UTF-8. Missing ones are left empty.
+     * @throws IOException If the page can not be written.
+     */
+    void write(Response response, Map<String, ?> values) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[keys.length];
+        long length = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Object value = values.get(keys[i]);
+            if (value instanceof ByteBuffer) buffers[i] = ((ByteBuffer) value).duplicate();
+            else if (value != null) buffers[i] = ByteBuffer.wrap(value.toString().getBytes(StandardCharsets.UTF_8));
+            length += encoded[i].length + (buffers[i] == null ? 0 : buffers[i].remaining());
+        }
+        length += encoded[keys.length].length;
+
+        HttpServletResponse raw = response.raw();
+        raw.setContentType("text/html; charset=utf-8");
+        raw.setContentLengthLong(length);
+
+        OutputStream out = SocketOutput.of(raw);
+        for (int i = 0; i < keys.length; i++) {
+            out.write(encoded[i]);
+            if (buffers[i] != null) OffHeap.write(out, buffers[i]);
+        }
+        out.write(encoded[keys.length]);
+        out.flush(); //Commits the response, so Spark does not serialize the route result
+    }
+
+    /**
+     * @param values The values of the keys, each one or more segments. Missing ones are left empty.
+     * @return The parts and values in order, usable as the value of an enclosing shell.
+     */
+    GzipSegment[] segments(Map<String, GzipSegment[]> values) {
+        List<GzipSegment> segments = new ArrayList<>(parts.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            segments.add(parts[i]);
+            GzipSegment[] value = values.get(keys[i]);
+            if (value != null) segments.addAll(Arrays.asList(value));
+        }
+        segments.add(parts[parts.length - 1]);
+        return segments.toArray(new GzipSegment[0]);
+    }
+
+    /**
+     * Writes the complete, gzip encoded page and commits the response.
+     *
+     * @param response The response.
+     * @param values   The values of the keys, each one or more segments. Missing ones are left empty.
+     * @throws IOException If the page can not be written.
+     */
+    void writeGzip(Response response, Map<String, GzipSegment[]> values) throws IOException {
+        GzipSegment[] segments = segments(values);
+
+        HttpServletResponse raw = response.raw();
+        raw.setContentType("text/html; charset=utf-8");
+        raw.setHeader("Content-Encoding", "gzip");
+        raw.setContentLengthLong(GzipSegment.size(segments));
+
+        OutputStream out = SocketOutput.of(raw);
+        GzipSegment.write(out, segments);
+        out.flush(); //Commits the response, so Spark does not serialize the route result
+    }
+}
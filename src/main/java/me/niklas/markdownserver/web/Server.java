@@ -2,27 +2,52 @@ package me.niklas.markdownserver.web;
 
 import me.niklas.markdownserver.MarkdownConfig;
 import me.niklas.markdownserver.MarkdownFile;
+import me.niklas.markdownserver.RenderCache;
+import me.niklas.markdownserver.RenderResult;
+import me.niklas.markdownserver.configuration.HashingPool;
 import me.niklas.markdownserver.configuration.SessionsManager;
 import me.niklas.markdownserver.configuration.UsersProvider;
 import me.niklas.markdownserver.fs.DirectoryWatcher;
+import me.niklas.markdownserver.fs.FolderPage;
 import me.niklas.markdownserver.fs.MarkdownFilesManager;
+import me.niklas.markdownserver.fs.MarkdownIndex;
+import me.niklas.markdownserver.fs.SearchIndex;
+import me.niklas.markdownserver.util.GzipSegment;
+import me.niklas.markdownserver.util.Histogram;
 import me.niklas.markdownserver.util.IpUtils;
+import me.niklas.markdownserver.util.Metrics;
+import me.niklas.markdownserver.util.Numbers;
+import me.niklas.markdownserver.util.OffHeap;
+import me.niklas.markdownserver.util.RateLimiter;
+import me.niklas.markdownserver.util.User;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.ModelAndView;
 import spark.Request;
 import spark.Response;
+import spark.Route;
 import spark.Service;
-import spark.template.velocity.VelocityTemplateEngine;
+import spark.Session;
+import spark.TemplateViewRoute;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,6 +56,12 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Server implements Runnable {
 
+    private static final int SEARCH_PAGE_SIZE = 10;
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "OTHER"}; //Values of the method label
+    private static final String NOT_FOUND_HTML = "<h1>Die angefragte Seite wurde nicht gefunden.</h1>\n" +
+            "<h3><a href=\"/\">Hier</a> findest du zurück zur Startseite.</h3>";
+    private static final GzipSegment NOT_FOUND_GZIP = GzipSegment.compress(NOT_FOUND_HTML);
+
     private final Logger logger = LoggerFactory.getLogger(getClass()); //The logger
     private final UsersProvider users;
     private final SessionsManager sessionsManager; //Manages the user sessions
@@ -39,20 +70,52 @@ public class Server implements Runnable {
     private final File rd; //Running directory (where the files are located)
     private final ReentrantLock lock = new ReentrantLock(); //The lock used to prevent that data is requested too early
     private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean warmedUp = new AtomicBoolean(false); //All files of the warmup are rendered
+    private final StaticAssets assets; //The files of /static and the resources folder
+    private final Templates templates; //Shared by all routes, keeps the templates compiled
+    private final RateLimiter loginLimiter = new RateLimiter(MarkdownConfig.LOGIN_ATTEMPTS); //Per IP address
+    private final JettyFactory jetty = new JettyFactory(); //Applies the thread pool settings
+    private final Navbar navbar; //Rendered once per dropdown and role
+    private final Set<String> routes = ConcurrentHashMap.newKeySet(); //Paths of all routes without parameters
+    private final Set<String> routePrefixes = ConcurrentHashMap.newKeySet(); //Paths of the routes with parameters, up to the first one
+    private final Map<String, Histogram[]> requestTimes = new ConcurrentHashMap<>(); //Route to the histograms of METHODS
+    private PageShell pageShell; //template.html, compressed once
+    private Service http;
     private boolean running = false;
 
     public Server(File runningDirectory) {
         this.rd = runningDirectory;
         this.sessionsManager = new SessionsManager(rd);
         this.users = new UsersProvider(rd);
+        this.assets = StaticAssets.load(new File(rd, "resources"));
+        this.templates = new Templates(assets::rewrite);
+        this.navbar = new Navbar(templates);
 
         mdManager = new MarkdownFilesManager(rd);
         mdManager.rescan();
+        if (MarkdownConfig.WARMUP != 0) {
+            mdManager.warmup(MarkdownConfig.WARMUP).whenComplete((result, error) -> {
+                if (error != null) logger.error("Warmup failed", error);
+                warmedUp.set(true);
+            });
+        } else warmedUp.set(true);
+
+        registerMetrics();
 
-        Thread t = new Thread(() -> new DirectoryWatcher(mdManager::rescan, this::reload, rd));
+        Thread t = new Thread(() -> new DirectoryWatcher(this::update, this::rescan, this::reload, rd));
         if (MarkdownConfig.LIVE_RELOAD) t.start();
     }
 
+    private void update(Collection<Path> paths) {
+        assets.update(paths);
+        mdManager.update(paths);
+    }
+
+    private void rescan() {
+        assets.rescan();
+        mdManager.rescan();
+    }
+
     private void reload() {
         users.reload();
         sessionsManager.reload();
@@ -64,40 +127,66 @@ public class Server implements Runnable {
         lock.lock();
         running = true;
 
-        Service http = Service.ignite().staticFileLocation("static").externalStaticFileLocation(rd.getAbsolutePath() + File.separatorChar + "resources").ipAddress(MarkdownConfig.HOST).port(MarkdownConfig.PORT);
+        pageShell = PageShell.of(templates, "template.html", "title", "data", "username", "nav");
+
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), new EmbeddedJettyFactory(jetty));
+        http = Service.ignite().ipAddress(MarkdownConfig.HOST).port(MarkdownConfig.PORT);
+
+        http.before((request, response) -> request.attribute("start", System.nanoTime())); //Runs first, before the login check
+        http.before((request, response) -> { //Static files do not need a login, like with Spark's static file handlers
+            int status = assets.serve(request, response);
+            if (status == 0) return;
+            request.attribute("route", "static");
+            http.halt(status);
+        });
+        http.afterAfter((request, response) -> { //Runs last, even if the request was halted
+            Long start = request.attribute("start");
+            String route = request.attribute("route");
+            if (start != null) requestTime(request.requestMethod(), route == null ? "filter" : route).since(start);
+        });
 
         if (!MarkdownConfig.ROOT.equals("/") && MarkdownConfig.ROOT.length() > 0) {
-            http.get("/", (request, response) -> {
+            http.get("/", timed("/", (request, response) -> {
                 response.redirect(MarkdownConfig.ROOT);
                 return "Redirecting <a href=\"" + MarkdownConfig.ROOT + "\">here</a>";
-            });
+            }));
         }
 
-        http.before("*", ((request, response) -> {
-            if (request.pathInfo().equals("/robots.txt")) return;
-            if (!verifyLogin(request) && !request.pathInfo().equals("/login")) {
-                request.session(true).attribute("redirect", request.pathInfo());
+        http.before("*", ((request, response) -> { //Static files are served by the filter before, they never get here
+            String path = request.pathInfo();
+            if (path.equals("/robots.txt") || path.equals("/ready")) return;
+            User session = sessionsManager.getSession(request.cookie("login-id")); //The only lookup of this request
+            boolean login = path.equals("/login");
+
+            if (session == null) {
+                if (login) return;
+                if (isKnown(path)) { //Only visitors without login get a server side session, and only for paths which exist
+                    request.session(true).attribute("redirect", path);
+                }
                 response.redirect("/login");
                 http.halt(301);
                 return;
-            } else if (request.pathInfo().equals("/login") && verifyLogin(request)) {
+            } else if (login) {
                 response.redirect("/");
                 http.halt(301);
                 return;
             }
+            request.attribute("username", session.getName());
 
-            if (!request.pathInfo().equals("/login") && users.blockByAdminOnlyMode(request)) {
+            if (users.blockByAdminOnlyMode(request)) {
                 logout(request, response);
                 response.redirect("/login");
                 http.halt(301);
-                return;
-            }
-            if (request.pathInfo().startsWith("/resources")) {
-                response.redirect(request.pathInfo().substring(10));
             }
         }));
 
-        http.get("/login", (request, response) -> {
+        http.get("/ready", timed("/ready", (request, response) -> { //For load balancers, does not need a login
+            if (isReady()) return "ready";
+            response.status(503);
+            return started.get() ? "warming up" : "starting";
+        }));
+
+        http.get("/login", timedView("/login", (request, response) -> {
 
             if (users.blockByAdminOnlyMode(request)) {
                 return new ModelAndView(new HashMap<String, Object>(), "locked.html");
@@ -105,17 +194,18 @@ public class Server implements Runnable {
 
             Map<String, Object> data = new HashMap<>();
             data.put("showInvalid", request.queryParams().contains("retry") ? "" : "display: none;");
-            String redirect = request.session(true).attribute("redirect");
+            String redirect = getRedirect(request);
             redirect = redirect == null ? "Startseite" : redirect.equals("/") ? "Startseite" : redirect;
             data.put("redirect", redirect);
             return new ModelAndView(data, "login.html");
-        }, new VelocityTemplateEngine());
+        }), templates);
 
-        http.post("/login", ((request, response) -> {
+        http.post("/login", timed("/login", (request, response) -> {
+            if (isThrottled(request, response)) return "Too many login attempts, please try again later.";
             logger.info("Receiving login try");
             boolean success = tryLogin(request, response);
             if (success) {
-                String redirect = request.session(true).attribute("redirect");
+                String redirect = getRedirect(request);
                 response.redirect(redirect == null ? "/" : redirect);
                 return "Redirecting";
             } else {
@@ -124,17 +214,18 @@ public class Server implements Runnable {
             }
         }));
 
-        http.get("/renewpw", (request, response) -> {
+        http.get("/renewpw", timedView("/renewpw", (request, response) -> {
 
             Map<String, Object> data = new HashMap<>();
             data.put("showInvalid", request.queryParams().contains("retry") ? "" : "display: none;");
             return new ModelAndView(data, "renewpw.html");
-        }, new VelocityTemplateEngine());
+        }), templates);
 
-        http.post("/renewpw", ((request, response) -> {
+        http.post("/renewpw", timed("/renewpw", (request, response) -> {
+            if (isThrottled(request, response)) return "Too many attempts, please try again later.";
             boolean success = users.changePassword(request, response);
             if (success) {
-                sessionsManager.invalidateSessionsForUser(request.session(true).attribute("username"));
+                sessionsManager.invalidateSessionsForUser(request.attribute("username"));
                 sessionsManager.invalidateId(request.cookie("login-id"));
                 response.removeCookie("login-id");
                 response.redirect("/");
@@ -145,7 +236,7 @@ public class Server implements Runnable {
             }
         }));
 
-        http.post("/renewpw/master", ((request, response) -> {
+        http.post("/renewpw/master", timed("/renewpw/master", (request, response) -> {
             if (!users.isMaster(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -164,45 +255,58 @@ public class Server implements Runnable {
             return users.changePassword(request, username, password) ? "Password was changed successfully." : "You don't have permission to do this.";
         }));
 
-        http.get("/logout", ((request, response) -> {
+        http.get("/logout", timed("/logout", (request, response) -> {
             logout(request, response);
             response.redirect("/login");
             return "Redirecting";
         }));
 
-        http.get("/admin", ((request, response) -> {
+        http.get("/admin", timed("/admin", (request, response) -> {
             if (!users.isAdmin(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
             }
             Map<String, Object> model = new HashMap<>();
             model.put("title", "Admin-Panel");
-            model.put("username", request.session(true).attribute("username"));
+            model.put("username", request.attribute("username"));
+            model.put("nav", nav(request, mdManager.getIndex()));
             ModelAndView mv = new ModelAndView(model, "admin.html");
-            return new VelocityTemplateEngine().render(mv);
+            templates.write(response, mv);
+            return "";
         }));
 
-        http.get("/sitemap", ((request, response) -> {
-            //Find folder overview
-            List<MarkdownFile> files = mdManager.getFolderOverview("/");
-
-            //Create overview
-            Map<String, Object> model = new HashMap<>();
-            model.put("title", "Ordnerübersicht");
-            model.put("data", mdManager.generateFolderHtml(files));
-            model.put("username", request.session(true).attribute("username"));
-            ModelAndView mv = new ModelAndView(model, "template.html");
-            return new VelocityTemplateEngine().render(mv);
+        http.get("/sitemap", timed("/sitemap", (request, response) -> {
+            MarkdownIndex index = mdManager.getIndex();
+            FolderPage sitemap = index.getFolderPage("/");
+            if (sitemap == null) {
+                String html = "<h1>Ordnerübersicht</h1><ul></ul>";
+                writePage(request, response, index, "Ordnerübersicht", html, GzipSegment.stored(html), "empty", 0);
+                return "";
+            }
+            ByteBuffer encoded = sitemap.getEncodedHtml(); //Only kept if pages are stored off the heap
+            writePage(request, response, index, "Ordnerübersicht", encoded != null ? encoded : sitemap.getHtml(), sitemap.getGzipHtml(),
+                    sitemap.getETag(), 0);
+            return "";
         }));
 
-        http.get("/nav", ((request, response) -> {
+        http.get("/nav", timed("/nav", (request, response) -> nav(request, mdManager.getIndex())));
+
+        http.get("/search", timed("/search", (request, response) -> {
+            String query = request.queryParams("q") == null ? "" : request.queryParams("q").trim();
+            int page = Math.min(10000, Math.max(0, Numbers.parseInt(request.queryParams("page"), 0)));
+            SearchIndex.Result result = mdManager.getSearch().search(query, page, SEARCH_PAGE_SIZE);
+
             Map<String, Object> model = new HashMap<>();
-            fillNavbar(model, request, response);
-            ModelAndView mv = new ModelAndView(model, "nav.html");
-            return new VelocityTemplateEngine().render(mv);
+            model.put("title", "Suchergebnisse");
+            model.put("data", generateSearchHtml(query, page, result));
+            model.put("username", request.attribute("username"));
+            model.put("nav", nav(request, mdManager.getIndex()));
+            ModelAndView mv = new ModelAndView(model, "template.html");
+            templates.write(response, mv);
+            return "";
         }));
 
-        http.get("/invalidate", (((request, response) -> {
+        http.get("/invalidate", timed("/invalidate", ((request, response) -> {
             if (!users.isMaster(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -211,7 +315,7 @@ public class Server implements Runnable {
             return "All user sessions have been deleted.";
         })));
 
-        http.get("/invalidate/:id", (((request, response) -> {
+        http.get("/invalidate/:id", timed("/invalidate/:id", ((request, response) -> {
             if (!users.isMaster(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -220,7 +324,7 @@ public class Server implements Runnable {
             return "This sessions has been removed.";
         })));
 
-        http.get("/sessions", ((request, response) -> {
+        http.get("/sessions", timed("/sessions", (request, response) -> {
             if (!users.isAdmin(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -234,10 +338,42 @@ public class Server implements Runnable {
 
             sessionsManager.getSessions().forEach((key, value) -> builder.append(String.format("<li><i>%s</i> is <b>%s from %s</b>.</li>\n", key, value.getName(), value.getIp())));
             builder.append("</ul>");
+            builder.append(String.format("<p>Expired sessions: <b>%d</b></p>", sessionsManager.getExpiredCount()));
+
+            HashingPool hashing = users.getHashingPool();
+            builder.append("<h5>Password hashing</h5>\n<ul>\n");
+            builder.append(String.format("<li>Threads: <b>%d</b>, active: <b>%d</b>, queued: <b>%d</b></li>\n", hashing.getThreads(), hashing.getActive(), hashing.getQueueDepth()));
+            builder.append(String.format("<li>Completed: <b>%d</b>, rejected: <b>%d</b>, throttled: <b>%d</b></li>\n", hashing.getCompleted(), hashing.getRejected(), loginLimiter.getThrottled()));
+            builder.append(String.format("<li>Latency: <b>%.1f ms</b> average, <b>%.1f ms</b> max</li>\n", hashing.getAverageLatency(), hashing.getMaxLatency()));
+            builder.append("</ul>");
             return builder.toString().trim();
         }));
 
-        http.post("/adminonly", ((request, response) -> {
+        http.get("/cache", timed("/cache", (request, response) -> {
+            if (!users.isAdmin(request)) {
+                response.status(401);
+                return "You are not authorized to do this.";
+            }
+            RenderCache cache = RenderCache.getInstance();
+
+            return "<h5>Render cache</h5>\n<ul>\n" +
+                    String.format("<li>Entries: <b>%d</b></li>\n", cache.size()) +
+                    String.format("<li>Size: <b>%d of %d KB</b></li>\n", cache.getWeight() / 1024, cache.getBudget() / 1024) +
+                    String.format("<li>Hits: <b>%d</b>, misses: <b>%d</b></li>\n", cache.getHits(), cache.getMisses()) +
+                    String.format("<li>Evictions: <b>%d</b>, rejections: <b>%d</b></li>\n", cache.getEvictions(), cache.getRejections()) +
+                    "</ul>";
+        }));
+
+        http.get("/metrics", timed("/metrics", (request, response) -> {
+            if (!users.isAdmin(request)) {
+                response.status(401);
+                return "You are not authorized to do this.";
+            }
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.write();
+        }));
+
+        http.post("/adminonly", timed("/adminonly", (request, response) -> {
             if (!users.isAdmin(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -247,9 +383,9 @@ public class Server implements Runnable {
             return now ? "Admin-only mode is now enabled." : "Admin-only mode is now disabled.";
         }));
 
-        http.get("/adminonly/toggletext", ((request, response) -> users.isAdminOnly() ? "Disable" : "Enable"));
+        http.get("/adminonly/toggletext", timed("/adminonly/toggletext", (request, response) -> users.isAdminOnly() ? "Disable" : "Enable"));
 
-        http.post("/users/add", ((request, response) -> {
+        http.post("/users/add", timed("/users/add", (request, response) -> {
             if (!users.isAdmin(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -268,7 +404,7 @@ public class Server implements Runnable {
             return users.addUser(username, password) ? "User was created successfully." : "This user could not be created.";
         }));
 
-        http.post("/users/remove", ((request, response) -> {
+        http.post("/users/remove", timed("/users/remove", (request, response) -> {
             if (!users.isAdmin(request)) {
                 response.status(401);
                 return "You are not authorized to do this.";
@@ -282,62 +418,60 @@ public class Server implements Runnable {
             return users.removeUser(username) ? "User was deleted successfully." : "This user could not be deleted.";
         }));
 
-        http.get("/error", ((request, response) -> "An error occurred."));
+        http.exception(RejectedExecutionException.class, ((exception, request, response) -> { //The password hashing is overloaded
+            response.status(503);
+            response.header("Retry-After", "5");
+            response.body("The server is busy, please try again in a few seconds.");
+        }));
 
-        http.get("/reload", ((request, response) -> {
+        http.get("/error", timed("/error", (request, response) -> "An error occurred."));
+
+        http.get("/reload", timed("/reload", (request, response) -> {
             mdManager.rescan();
             users.reload();
             response.redirect("/");
             return "Redirecting";
         }));
 
-        http.notFound(((request, response) -> {
+        http.notFound(timed("pages", (request, response) -> {
             String path = request.pathInfo();
             try {
 
+                MarkdownIndex index = mdManager.getIndex(); //One snapshot for the whole request
+
                 //Find Markdown file matching this route
-                Optional<MarkdownFile> result = mdManager.getFile(path);
+                Optional<MarkdownFile> result = index.getFile(path);
 
                 if (result.isPresent()) {
-
-                    response.status(200); //OK
-                    Map<String, Object> model = new HashMap<>();
-                    model.put("title", result.get().getTitle());
-                    model.put("data", result.get().getHtml());
-                    model.put("username", request.session(true).attribute("username"));
-                    ModelAndView mv = new ModelAndView(model, "template.html");
-                    return new VelocityTemplateEngine().render(mv);
+                    RenderResult page = result.get().getResult(); //One version for the whole response
+                    ByteBuffer encoded = page.getEncodedHtml(); //Only kept if pages are stored off the heap
+                    writePage(request, response, index, page.getTitle(), encoded != null ? encoded : page.getHtml(), page.getGzipHtml(),
+                            page.getETag(), page.getLastModified());
+                    return "";
                 }
 
                 //Check whether it has an index
                 if (path.length() > 1 && path.charAt(path.length() - 1) == '/')
                     path = path.substring(0, path.length() - 1);
-                if (mdManager.hasIndexFile(path)) {
-                    response.redirect(mdManager.getRedirectPath(path));
+                if (index.hasIndexFile(path)) {
+                    response.redirect(index.getRedirectPath(path));
                     return "Redirecting";
                 }
 
                 //Find folder overview
-                List<MarkdownFile> files = mdManager.getFolderOverview(path);
+                FolderPage folder = index.getFolderPage(path);
 
-                if (files.size() == 0) { //Error 404
+                if (folder == null) { //Error 404, the body is compressed once
                     response.status(404); //Not found
-                    Map<String, Object> model = new HashMap<>();
-                    model.put("title", "Nicht gefunden");
-                    model.put("data", "<h1>Die angefragte Seite wurde nicht gefunden.</h1>\n" +
-                            "<h3><a href=\"/\">Hier</a> findest du zurück zur Startseite.</h3>");
-                    model.put("username", request.session(true).attribute("username"));
-                    ModelAndView mv = new ModelAndView(model, "template.html");
-                    return new VelocityTemplateEngine().render(mv);
+                    writeShell(request, response, index, users.isAdmin(request), "Nicht gefunden", NOT_FOUND_HTML, NOT_FOUND_GZIP);
+                    return "";
                 }
 
-                //Create overview
-                Map<String, Object> model = new HashMap<>();
-                model.put("title", "Ordnerübersicht");
-                model.put("data", mdManager.generateFolderHtml(files));
-                model.put("username", request.session(true).attribute("username"));
-                ModelAndView mv = new ModelAndView(model, "template.html");
-                return new VelocityTemplateEngine().render(mv);
+                //Send the overview, generated once per folder
+                ByteBuffer encoded = folder.getEncodedHtml();
+                writePage(request, response, index, "Ordnerübersicht", encoded != null ? encoded : folder.getHtml(), folder.getGzipHtml(),
+                        folder.getETag(), 0);
+                return "";
 
 
             } catch (Exception e) {
@@ -357,16 +491,191 @@ public class Server implements Runnable {
         logger.info("Directory to be served: " + rd.getAbsolutePath());
     }
 
-    private void fillNavbar(Map<String, Object> model, Request request, Response response) {
-        model.put("id", request.session(true).id());
-        model.put("username", request.session(true).attribute("username"));
-        model.put("servername", MarkdownConfig.SERVER_NAME);
-        model.put("dropdownName", MarkdownConfig.DROPDOWN_NAME);
-        model.put("dropdownContent", mdManager.getDropdown());
+    /**
+     * Marks the request with the route, its time is recorded once the response is complete.
+     */
+    private Route timed(String path, Route route) {
+        if (path.contains(":")) routePrefixes.add(path.substring(0, path.indexOf(':')));
+        else if (path.startsWith("/")) routes.add(path); //Not the pages, which are checked against the index
+        return (request, response) -> {
+            request.attribute("route", path);
+            return route.handle(request, response);
+        };
+    }
+
+    private TemplateViewRoute timedView(String path, TemplateViewRoute route) {
+        routes.add(path);
+        return (request, response) -> {
+            request.attribute("route", path);
+            return route.handle(request, response);
+        };
+    }
+
+    /**
+     * @param method The method of the request. Any token is a valid method, so only GET, POST and HEAD get their own label.
+     * @param route  The route, one of a fixed set.
+     * @return The histogram, looked up in the metrics only once per route and method.
+     */
+    private Histogram requestTime(String method, String route) {
+        int index = method.equals("GET") ? 0 : method.equals("POST") ? 1 : method.equals("HEAD") ? 2 : 3;
+        Histogram[] times = requestTimes.computeIfAbsent(route, key -> new Histogram[METHODS.length]);
+        Histogram time = times[index];
+        if (time == null) { //Two threads may both look it up, they get the same histogram
+            times[index] = time = Metrics.histogram("http_request_duration_seconds", "Time from the first filter to the complete response",
+                    "method", METHODS[index], "route", route);
+        }
+        return time;
+    }
+
+    /**
+     * Exposes the state of all parts of the server on /metrics.
+     */
+    private void registerMetrics() {
+        Metrics.gauge("markdown_files", "Markdown files in the current index", () -> mdManager.getIndex().size());
+        Metrics.gauge("markdown_index_version", "Version of the current index, increases with every change", mdManager::getVersion);
+        Metrics.gauge("search_documents", "Files in the search index", () -> mdManager.getSearch().size());
+
+        RenderCache cache = RenderCache.getInstance();
+        Metrics.counter("render_cache_hits_total", "Render results served from the cache", cache::getHits);
+        Metrics.counter("render_cache_misses_total", "Render results which had to be rendered", cache::getMisses);
+        Metrics.counter("render_cache_evictions_total", "Render results evicted from the cache", cache::getEvictions);
+        Metrics.counter("render_cache_rejections_total", "Render results which were not admitted to the cache", cache::getRejections);
+        Metrics.gauge("render_cache_entries", "Render results in the cache", cache::size);
+        Metrics.gauge("render_cache_bytes", "Approximate size of the cached render results", cache::getWeight);
+        Metrics.gauge("render_cache_hit_ratio", "Hits divided by all lookups", () -> {
+            long lookups = cache.getHits() + cache.getMisses();
+            return lookups == 0 ? 0 : (double) cache.getHits() / lookups;
+        });
+        Metrics.gauge("direct_memory_bytes", "Memory of all direct buffers, including the pages kept off the heap", OffHeap::getUsed);
+
+        Metrics.gauge("sessions", "Active login sessions", () -> sessionsManager.getSessions().size());
+        Metrics.counter("sessions_expired_total", "Sessions removed because they expired", sessionsManager::getExpiredCount);
+
+        HashingPool hashing = users.getHashingPool();
+        Metrics.gauge("password_hash_queue", "Password hashes waiting for a thread", hashing::getQueueDepth);
+        Metrics.gauge("password_hash_active", "Password hashes being computed", hashing::getActive);
+        Metrics.counter("password_hash_rejected_total", "Password hashes refused because the pool was overloaded", hashing::getRejected);
+        Metrics.counter("login_throttled_total", "Login attempts refused by the rate limit", loginLimiter::getThrottled);
+
+        Metrics.gauge("jetty_threads", "Request threads, or running virtual threads", jetty::getThreads);
+        Metrics.gauge("jetty_threads_idle", "Request threads waiting for work", jetty::getIdleThreads);
+        Metrics.gauge("jetty_queue", "Requests waiting for a thread", jetty::getQueueSize);
+    }
+
+    /**
+     * Stops the web server, e.g. at the end of a benchmark.
+     */
+    public void stop() {
+        if (http != null) http.stop();
+    }
+
+    /**
+     * @return Whether the server is started and the warmup is done.
+     */
+    public boolean isReady() {
+        return started.get() && warmedUp.get();
+    }
+
+    private String generateSearchHtml(String query, int page, SearchIndex.Result result) throws Exception {
+        StringBuilder builder = new StringBuilder("<h1>Suchergebnisse</h1>");
+        if (query.length() == 0) return builder.append("<p>Bitte gib einen Suchbegriff ein.</p>").toString();
+
+        builder.append("<p>").append(result.getTotal()).append(" Treffer für <i>").append(escape(query)).append("</i></p><ul>");
+        result.getHits().forEach(hit -> builder.append("<li><a href=\"").append(hit.getFile().getUrl()).append("\">")
+                .append(escape(hit.getTitle())).append("</a> <small>").append(hit.getFile().getUrl()).append("</small></li>"));
+        builder.append("</ul>");
+
+        String link = "/search?q=" + URLEncoder.encode(query, "UTF-8") + "&page=";
+        if (page > 0) builder.append("<a href=\"").append(link).append(page - 1).append("\">Zurück</a> ");
+        if ((page + 1) * SEARCH_PAGE_SIZE < result.getTotal())
+            builder.append("<a href=\"").append(link).append(page + 1).append("\">Weiter</a>");
+        return builder.toString();
+    }
+
+    private String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Sends content in template.html, with validators which include the user and the navigation bar.
+     * Compressed content is spliced into the compressed shell, so only the small per user parts are compressed per request.
+     *
+     * @param index        The snapshot the content comes from.
+     * @param html         The content as String, or encoded as UTF-8 in a ByteBuffer.
+     * @param etag         The entity tag of the content.
+     * @param lastModified The modification time of the content, 0 if unknown.
+     * @throws IOException If the page can not be written.
+     */
+    private void writePage(Request request, Response response, MarkdownIndex index, String title, Object html,
+                           GzipSegment gzipHtml, String etag, long lastModified) throws IOException {
+        String username = request.attribute("username");
         boolean admin = users.isAdmin(request);
-        model.put("notAdminDisabled", admin ? "active" : "disabled");
-        model.put("notAdminElement", admin ? "" : "aria-disabled=\"true\"");
+        String tag = HttpCaching.variant(HttpCaching.pageTag(etag, username, navbar.tag(index, admin) + pageShell.getTag()),
+                HttpCaching.acceptsGzip(request)); //writeShell makes the same choice
 
+        if (HttpCaching.isNotModified(request, response, tag, lastModified, true)) {
+            response.status(304); //Not modified, the client still has this version
+            return;
+        }
+
+        response.status(200); //OK
+        writeShell(request, response, index, admin, title, html, gzipHtml);
+    }
+
+    /**
+     * Writes content into template.html without Velocity, the shell and the navigation bar are rendered already.
+     */
+    private void writeShell(Request request, Response response, MarkdownIndex index, boolean admin, String title,
+                            Object html, GzipSegment gzipHtml) throws IOException {
+        String username = request.attribute("username");
+        response.header("Vary", "Accept-Encoding");
+        if (HttpCaching.acceptsGzip(request)) {
+            Map<String, GzipSegment[]> values = new HashMap<>();
+            values.put("title", new GzipSegment[]{GzipSegment.stored(title)});
+            values.put("data", new GzipSegment[]{gzipHtml});
+            values.put("username", new GzipSegment[]{GzipSegment.stored(username)});
+            values.put("nav", navbar.get(index, admin).segments(Collections.singletonMap("username", values.get("username"))));
+            pageShell.writeGzip(response, values);
+            return;
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        values.put("title", title);
+        values.put("data", html);
+        values.put("username", username);
+        values.put("nav", navbar.get(index, admin).render(Collections.singletonMap("username", username)));
+        pageShell.write(response, values);
+    }
+
+    /**
+     * @param path The requested path.
+     * @return Whether a route, a file or a folder exists at the path. Exact lookups only, nothing is filtered or sorted.
+     */
+    private boolean isKnown(String path) {
+        if (routes.contains(path) || mdManager.getIndex().contains(path)) return true;
+        for (String prefix : routePrefixes) {
+            if (path.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The navigation bar for the user of this request.
+     */
+    private String nav(Request request, MarkdownIndex index) {
+        return navbar.get(index, users.isAdmin(request)).render(Collections.singletonMap("username", request.attribute("username")));
+    }
+
+    /**
+     * Takes a token of the client's bucket. Checked before any password is hashed, so refusing is cheap.
+     *
+     * @return Whether the request was refused with 429.
+     */
+    private boolean isThrottled(Request request, Response response) {
+        if (loginLimiter.tryAcquire(IpUtils.getIp(request))) return false;
+        response.status(429);
+        response.header("Retry-After", String.valueOf(loginLimiter.getRetryAfter()));
+        return true;
     }
 
     private boolean tryLogin(Request request, Response response) {
@@ -383,23 +692,16 @@ public class Server implements Runnable {
         } else {
             logger.info("Login successful for " + username);
             response.cookie("login-id", sessionsManager.createSession(IpUtils.getIp(request), username), Math.toIntExact(MarkdownConfig.COOKIE_AGE / 1000L));
-            request.session(true).attribute("username", username);
             return true;
         }
     }
 
-    private boolean verifyLogin(Request request) {
-        String cookie = request.cookie("login-id");
-        if (cookie == null) {
-            logger.info("No cookie found when accessing " + request.pathInfo());
-            return false;
-        }
-
-        if (sessionsManager.hasSession(cookie)) {
-            request.session(true).attribute("username", sessionsManager.getNameById(cookie));
-            return true;
-        }
-        return false;
+    /**
+     * @return The page the visitor wanted to see before the login, null if there is none.
+     */
+    private String getRedirect(Request request) {
+        Session session = request.session(false);
+        return session == null ? null : session.attribute("redirect");
     }
 
     private void logout(Request request, Response response) {
@@ -0,0 +1,65 @@
+package me.niklas.markdownserver.web;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The output of a Jetty response as a channel, so direct buffers reach Jetty as they are.
+ * Small writes are collected in Jetty's buffer, a buffer bypasses it: Jetty sends the collected bytes and the buffer
+ * (together with the headers on the first write) in one gathering write to the socket.
+ */
+class SocketOutput extends OutputStream implements WritableByteChannel {
+
+    private final HttpOutput out;
+
+    private SocketOutput(HttpOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * @param response The response.
+     * @return The output of the response, as a channel if it is Jetty's.
+     * @throws IOException If the output can not be opened.
+     */
+    static OutputStream of(HttpServletResponse response) throws IOException {
+        OutputStream out = response.getOutputStream();
+        return out instanceof HttpOutput ? new SocketOutput((HttpOutput) out) : out;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        out.write(src); //Blocks until the buffer is written
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !out.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,355 @@
+package me.niklas.markdownserver.web;
+
+import me.niklas.markdownserver.util.GzipSegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Serves the files of /static in the jar and of the resources folder, replacing Spark's static file handlers.
+ * The files of the jar and text files of the resources folder are kept in memory, up to a total budget.
+ * Images, fonts, PDFs and everything beyond the budget are sent from disk.
+ * Every file gets a second name containing a hash of its content, e.g. /style.3fa81c09d2.css. The templates link to
+ * these names, so browsers may keep them forever and only ask again when the content, and with it the name, changes.
+ * The plain names keep working, but have to be revalidated.
+ * <p>
+ * Files of the resources folder are also served below /resources, which used to be a redirect.
+ * Files added, changed or deleted later are applied through {@link #update(Collection)}, with the events of the directory watcher.
+ */
+class StaticAssets {
+
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final long MAX_IN_MEMORY = 4 * 1024 * 1024; //Larger files are read from disk on every request
+    private static final long MEMORY_BUDGET = 64 * 1024 * 1024; //All files kept in memory together, compressed copies included
+    private static final Pattern REFERENCE = Pattern.compile("(href|src)=\"(/[^\"?#]+)\"");
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("js", "application/javascript; charset=utf-8");
+        TYPES.put("txt", "text/plain; charset=utf-8");
+        TYPES.put("html", "text/html; charset=utf-8");
+        TYPES.put("json", "application/json");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("ico", "image/x-icon");
+        TYPES.put("png", "image/png");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("webp", "image/webp");
+        TYPES.put("pdf", "application/pdf");
+        TYPES.put("woff", "font/woff");
+        TYPES.put("woff2", "font/woff2");
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>(); //Plain and hashed paths
+    private final Map<String, String> hashed = new HashMap<>(); //Plain path of the jar files to hashed path, for the templates
+    private final AtomicLong memory = new AtomicLong(); //Bytes of all assets in memory
+    private final File resources;
+
+    private StaticAssets(File resources) {
+        this.resources = resources.getAbsoluteFile();
+    }
+
+    /**
+     * Reads and hashes all files once.
+     *
+     * @param resources The resources folder next to the markdown files, it does not need to exist.
+     * @return The assets.
+     */
+    static StaticAssets load(File resources) {
+        StaticAssets assets = new StaticAssets(resources);
+        assets.loadClasspath();
+
+        assets.rescan();
+        assets.logger.info("Static files: " + new HashSet<>(assets.assets.values()).size() + ", in memory: " + assets.memory.get() / 1024 + " KB");
+        return assets;
+    }
+
+    private void loadClasspath() {
+        URL url = getClass().getClassLoader().getResource("static");
+        if (url == null) return;
+
+        try {
+            if (url.getProtocol().equals("jar")) {
+                JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.isDirectory() || !entry.getName().startsWith("static/")) continue;
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        add(entry.getName().substring(6), read(in), entry.getTime(), null);
+                    }
+                }
+            } else {
+                Path root = Paths.get(url.toURI());
+                try (Stream<Path> files = Files.walk(root)) {
+                    for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                        String path = "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+                        add(path, Files.readAllBytes(file), file.toFile().lastModified(), null);
+                    }
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            logger.error("Can not read the static files", e);
+        }
+        assets.forEach((path, asset) -> {
+            if (!path.equals(asset.hashedPath)) hashed.put(path, asset.hashedPath);
+        });
+    }
+
+    /**
+     * Applies the changes of one save. Paths outside of the resources folder are ignored.
+     *
+     * @param paths The changed paths, they may point to files or directories which no longer exist.
+     */
+    synchronized void update(Collection<Path> paths) {
+        for (Path path : paths) {
+            File file = path.toFile().getAbsoluteFile();
+            if (!file.getPath().startsWith(resources.getPath() + File.separator)) continue;
+
+            if (isServed(file)) loadFile(file);
+            else if (!file.exists()) { //Deleted, this may have been a whole directory
+                String prefix = file.getPath() + File.separator;
+                for (Asset asset : new HashSet<>(assets.values())) {
+                    if (asset.file != null && (asset.file.equals(file) || asset.file.getPath().startsWith(prefix))) remove(asset);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the resources folder with the loaded files, e.g. after the directory watcher has lost events.
+     */
+    synchronized void rescan() {
+        if (resources.isDirectory()) {
+            try (Stream<Path> files = Files.walk(resources.toPath())) {
+                files.map(Path::toFile).filter(StaticAssets::isServed).forEach(file -> {
+                    Asset asset = assets.get("/resources" + relativize(file));
+                    if (asset == null || asset.isChanged()) loadFile(file);
+                });
+            } catch (IOException e) {
+                logger.error("Can not read the resources folder", e);
+            }
+        }
+        for (Asset asset : new HashSet<>(assets.values())) {
+            if (asset.file != null && !isServed(asset.file)) remove(asset);
+        }
+    }
+
+    private void loadFile(File file) {
+        String relative = relativize(file);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        try {
+            Asset old = assets.get("/resources" + relative);
+            long available = MEMORY_BUDGET - memory.get() + (old == null ? 0 : old.memory);
+            boolean keep = length <= MAX_IN_MEMORY && length * 2 <= available && isText(typeOf(relative)); //Twice for the compressed copy
+            byte[] bytes = keep ? Files.readAllBytes(file.toPath()) : null;
+            Asset asset = add("/resources" + relative, bytes, lastModified, file);
+            if (!hashed.containsKey(relative)) assets.put(relative, asset); //Like the former external location; the jar files win
+            if (old != null) { //Replaced after the new one is in place, so no request misses the file in between
+                if (!old.hashedPath.equals(asset.hashedPath)) assets.remove(old.hashedPath, old);
+                memory.addAndGet(-old.memory);
+            }
+        } catch (IOException e) {
+            logger.error("Can not read " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private void remove(Asset asset) {
+        String relative = relativize(asset.file);
+        assets.remove("/resources" + relative, asset);
+        assets.remove(relative, asset);
+        assets.remove(asset.hashedPath, asset);
+        memory.addAndGet(-asset.memory);
+    }
+
+    private String relativize(File file) {
+        return file.getAbsolutePath().substring(resources.getPath().length()).replace(File.separatorChar, '/');
+    }
+
+    private static boolean isServed(File file) {
+        return file.isFile() && !file.isHidden();
+    }
+
+    private Asset add(String path, byte[] bytes, long lastModified, File file) {
+        Asset asset = new Asset(path, bytes, lastModified, file);
+        memory.addAndGet(asset.memory);
+        assets.put(path, asset);
+        assets.put(asset.hashedPath, asset);
+        return asset;
+    }
+
+    /**
+     * Replaces the links to files of the jar with their hashed names.
+     *
+     * @param template The source of a template.
+     * @return The template linking to the hashed names.
+     */
+    String rewrite(String template) {
+        Matcher matcher = REFERENCE.matcher(template);
+        StringBuffer result = new StringBuffer(template.length());
+        while (matcher.find()) {
+            String path = hashed.get(matcher.group(2));
+            matcher.appendReplacement(result, Matcher.quoteReplacement(path == null ? matcher.group() : matcher.group(1) + "=\"" + path + "\""));
+        }
+        return matcher.appendTail(result).toString();
+    }
+
+    /**
+     * Writes the file if the path belongs to one. Only GET and HEAD requests are answered.
+     *
+     * @param request  The request.
+     * @param response The response, committed if a file was written.
+     * @return The status code sent, or 0 if the path is not a static file.
+     * @throws IOException If the file can not be written.
+     */
+    int serve(Request request, Response response) throws IOException {
+        String method = request.requestMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) return 0;
+
+        String path = request.pathInfo();
+        Asset asset = assets.get(path);
+        if (asset == null) return 0;
+
+        HttpServletResponse raw = response.raw();
+        boolean immutable = path.equals(asset.hashedPath); //The name changes with the content
+        boolean gzip = asset.gzip != null && HttpCaching.acceptsGzip(request);
+        if (!immutable && HttpCaching.isNotModified(request, response, HttpCaching.variant(asset.etag, gzip), asset.lastModified, false)) {
+            raw.setHeader("Cache-Control", "public, no-cache");
+            raw.setStatus(304);
+            raw.flushBuffer();
+            return 304;
+        }
+        raw.setHeader("Cache-Control", immutable ? IMMUTABLE : "public, no-cache");
+        raw.setContentType(asset.type);
+        if (asset.gzip != null) raw.setHeader("Vary", "Accept-Encoding");
+
+        if (gzip) raw.setHeader("Content-Encoding", "gzip");
+        raw.setContentLengthLong(gzip ? asset.gzip.length : asset.length);
+        raw.setStatus(200);
+
+        OutputStream out = raw.getOutputStream();
+        if (method.equals("GET")) {
+            if (gzip) out.write(asset.gzip);
+            else if (asset.bytes != null) out.write(asset.bytes);
+            else Files.copy(asset.file.toPath(), out);
+        }
+        out.flush(); //Commits the response, so neither the filters nor Spark write anything after it
+        return 200;
+    }
+
+    private static String typeOf(String path) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        String extension = dot > slash ? path.substring(dot + 1).toLowerCase() : "";
+        String guessed = URLConnection.guessContentTypeFromName(path);
+        return TYPES.getOrDefault(extension, guessed != null ? guessed : "application/octet-stream");
+    }
+
+    /**
+     * @return Whether files of this type compress well. Only those are kept in memory, binary files are sent from disk.
+     */
+    private static boolean isText(String type) {
+        return type.startsWith("text/") || type.startsWith("application/javascript") || type.startsWith("application/json")
+                || type.equals("image/svg+xml") || type.equals("image/x-icon");
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] bytes, long length, long lastModified) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (bytes != null) digest.update(bytes);
+            else digest.update((length + "-" + lastModified).getBytes()); //Too large to keep, identified by size and time
+            StringBuilder builder = new StringBuilder();
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 5; i++) builder.append(String.format("%02x", hash[i]));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //Every Java platform has SHA-256
+        }
+    }
+
+    private static class Asset {
+
+        private final String hashedPath;
+        private final String type;
+        private final String etag;
+        private final byte[] bytes; //Null if the file is too large
+        private final byte[] gzip; //Null if compression does not pay off
+        private final long length;
+        private final long lastModified;
+        private final File file; //Null for the files of the jar
+        private final long memory; //Bytes kept in memory
+
+        private Asset(String path, byte[] bytes, long lastModified, File file) {
+            this.bytes = bytes;
+            this.file = file;
+            this.length = bytes != null ? bytes.length : file.length();
+            this.lastModified = lastModified;
+
+            int slash = path.lastIndexOf('/');
+            int dot = path.lastIndexOf('.');
+            this.type = typeOf(path);
+
+            this.etag = hash(bytes, length, lastModified);
+            this.hashedPath = dot > slash ? path.substring(0, dot) + "." + etag + path.substring(dot) : path + "." + etag;
+            this.gzip = compress(bytes, type);
+            this.memory = (bytes == null ? 0 : bytes.length) + (gzip == null ? 0 : gzip.length);
+        }
+
+        private static byte[] compress(byte[] bytes, String type) {
+            if (bytes == null || bytes.length < 256 || !isText(type)) return null;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                GzipSegment.write(out, GzipSegment.compress(bytes));
+            } catch (IOException e) {
+                return null; //Can not happen in memory
+            }
+            return out.size() < bytes.length * 9 / 10 ? out.toByteArray() : null;
+        }
+
+        private boolean isChanged() {
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.niklas.markdownserver.web;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
+import spark.ModelAndView;
+import spark.Response;
+import spark.TemplateEngine;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * One Velocity engine for the whole server. Templates are loaded from the classpath once and kept compiled.
+ * Their source can be rewritten while loading, e.g. to link the hashed names of the static files.
+ */
+class Templates extends TemplateEngine {
+
+    private final VelocityEngine engine;
+
+    /**
+     * @param rewrite Applied to the source of every template once, when it is loaded.
+     */
+    Templates(UnaryOperator<String> rewrite) {
+        VelocityEngine engine = new VelocityEngine();
+        engine.setProperty("resource.loader", "class");
+        engine.setProperty("class.resource.loader.instance", new RewritingLoader(rewrite));
+        engine.setProperty("class.resource.loader.cache", "true");
+        engine.setProperty("class.resource.loader.modificationCheckInterval", "-1"); //The templates are part of the jar
+        engine.init();
+        this.engine = engine;
+    }
+
+    @Override
+    public String render(ModelAndView modelAndView) {
+        StringWriter writer = new StringWriter();
+        merge(modelAndView, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Renders the template straight into the response, without building the page as a String first.
+     * The route has to return an empty String afterwards, the response is already committed.
+     *
+     * @param response     The response.
+     * @param modelAndView The model and the name of the template.
+     * @throws IOException If the response can not be written.
+     */
+    void write(Response response, ModelAndView modelAndView) throws IOException {
+        HttpServletResponse raw = response.raw();
+        if (raw.getContentType() == null) raw.setContentType("text/html; charset=utf-8");
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(raw.getOutputStream(), StandardCharsets.UTF_8), 8192);
+        merge(modelAndView, writer);
+        writer.flush();
+    }
+
+    private void merge(ModelAndView modelAndView, Writer writer) {
+        if (!(modelAndView.getModel() instanceof Map)) {
+            throw new IllegalArgumentException("modelAndView must be of type java.util.Map");
+        }
+        Template template = engine.getTemplate(modelAndView.getViewName(), StandardCharsets.UTF_8.name());
+        template.merge(new VelocityContext((Map<?, ?>) modelAndView.getModel()), writer);
+    }
+
+    private static class RewritingLoader extends ClasspathResourceLoader {
+
+        private final UnaryOperator<String> rewrite;
+
+        private RewritingLoader(UnaryOperator<String> rewrite) {
+            this.rewrite = rewrite;
+        }
+
+        @Override
+        public InputStream getResourceStream(String name) throws ResourceNotFoundException {
+            try (InputStream in = super.getResourceStream(name)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+                return new ByteArrayInputStream(rewrite.apply(new String(out.toByteArray(), StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new ResourceNotFoundException("Can not read " + name, e);
+            }
+        }
+    }
+}
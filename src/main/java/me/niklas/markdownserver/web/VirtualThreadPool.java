@@ -0,0 +1,105 @@
+package me.niklas.markdownserver.web;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every request on its own virtual thread, so requests blocked on disk, password hashes or session files
+ * do not hold one of a few hundred threads. Needs Java 21, the methods are looked up by reflection
+ * so the server still builds for and runs on Java 8.
+ * <p>
+ * Acceptors and selectors never end and would occupy a carrier thread forever, so everything started
+ * until the server is running gets a normal thread. Only the tasks after that, the requests, are virtual.
+ */
+class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool, LifeCycle.Listener {
+
+    private final ExecutorService virtual;
+    private final ExecutorService platform = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Jetty acceptor and selector");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean serverStarted = false;
+
+    private VirtualThreadPool(ExecutorService virtual) {
+        this.virtual = virtual;
+    }
+
+    /**
+     * @return The pool, or null if this Java version has no virtual threads.
+     */
+    static VirtualThreadPool create() {
+        try {
+            return new VirtualThreadPool((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) { //Missing, or a preview feature which is not enabled
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        (serverStarted ? virtual : platform).execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void lifeCycleStarted(LifeCycle event) {
+        serverStarted = true;
+    }
+
+    @Override
+    public void lifeCycleStarting(LifeCycle event) {
+    }
+
+    @Override
+    public void lifeCycleFailure(LifeCycle event, Throwable cause) {
+    }
+
+    @Override
+    public void lifeCycleStopping(LifeCycle event) {
+    }
+
+    @Override
+    public void lifeCycleStopped(LifeCycle event) {
+    }
+
+    @Override
+    protected void doStop() {
+        virtual.shutdownNow();
+        platform.shutdownNow();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        virtual.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        platform.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0; //Virtual threads are created per task and never wait for work
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
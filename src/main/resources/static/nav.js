@@ -1,5 +0,0 @@
-axios.get("/nav")
-    .then(function(response) {
-        document.getElementsByTagName("body")[0].innerHTML = response.data + document.getElementsByTagName("body")[0].innerHTML;
-        updateSite();
-    })
\ No newline at end of file
@@ -0,0 +1,21 @@
+package me.niklas.markdownserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FrequencySketchTest {
+
+    @Test
+    void saturatedCountersDoNotSpillIntoTheirNeighbours() {
+        RenderCache.FrequencySketch sketch = new RenderCache.FrequencySketch(1 << 16);
+        IntStream.range(0, 100_000).parallel().forEach(i -> sketch.increment(42));
+
+        assertEquals(15, sketch.frequency(42));
+        for (int hash = 0; hash < 1000; hash++) {
+            if (hash != 42) assertEquals(0, sketch.frequency(hash), "hash " + hash);
+        }
+    }
+}
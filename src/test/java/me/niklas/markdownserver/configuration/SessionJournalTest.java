@@ -0,0 +1,114 @@
+package me.niklas.markdownserver.configuration;
+
+import me.niklas.markdownserver.util.User;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.convert.DefaultListDelimiterHandler;
+import org.apache.commons.configuration2.io.FileHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionJournalTest {
+
+    @TempDir
+    File dir;
+
+    private File snapshotFile() {
+        return new File(dir, "sessions.properties");
+    }
+
+    private File journalFile() {
+        return new File(dir, "sessions.journal");
+    }
+
+    private Configuration loadSnapshot() {
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        config.setListDelimiterHandler(new DefaultListDelimiterHandler('`'));
+        if (!snapshotFile().exists()) return config;
+        try {
+            FileHandler handler = new FileHandler(config);
+            handler.setEncoding("UTF-8");
+            handler.load(snapshotFile());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return config;
+    }
+
+    private Map<String, User> replay() {
+        Map<String, User> loaded = new HashMap<>();
+        new SessionJournal(snapshotFile(), journalFile(), new ConcurrentHashMap<>(), () -> {
+        }).load(loaded, this::loadSnapshot);
+        return loaded;
+    }
+
+    @Test
+    void journalIsReplayedOnTopOfTheSnapshot() throws Exception {
+        Files.write(snapshotFile().toPath(), "alt=10.0.0.1`bob`1000\n".getBytes(StandardCharsets.UTF_8));
+        SessionJournal journal = new SessionJournal(snapshotFile(), journalFile(), new ConcurrentHashMap<>(), () -> {
+        });
+
+        journal.added("a", new User("127.0.0.1", "alice", 2000));
+        journal.added("b", new User("127.0.0.2", "carol", 3000));
+        journal.removed("a");
+        journal.flush();
+
+        Map<String, User> loaded = replay();
+        assertEquals(2, loaded.size());
+        assertEquals(new User("10.0.0.1", "bob", 0), loaded.get("alt"));
+        assertEquals(new User("127.0.0.2", "carol", 0), loaded.get("b"));
+        assertEquals(3000, loaded.get("b").getCreationTime());
+    }
+
+    @Test
+    void clearRemovesTheSnapshotSessions() throws Exception {
+        Files.write(snapshotFile().toPath(), "alt=10.0.0.1`bob`1000\n".getBytes(StandardCharsets.UTF_8));
+        SessionJournal journal = new SessionJournal(snapshotFile(), journalFile(), new ConcurrentHashMap<>(), () -> {
+        });
+
+        journal.cleared();
+        journal.added("n", new User("127.0.0.1", "dave", 4000));
+        journal.flush();
+
+        Map<String, User> loaded = replay();
+        assertEquals(1, loaded.size());
+        assertEquals(new User("127.0.0.1", "dave", 0), loaded.get("n"));
+    }
+
+    @Test
+    void compactionKeepsTheState() throws Exception {
+        Map<String, User> sessions = new ConcurrentHashMap<>();
+        CountDownLatch compacted = new CountDownLatch(1);
+        SessionJournal journal = new SessionJournal(snapshotFile(), journalFile(), sessions, compacted::countDown);
+
+        for (int i = 0; i < 1500; i++) { //The live state changes first, just like in the sessions manager
+            User user = new User("127.0.0.1", "user" + i, i);
+            sessions.put("s" + i, user);
+            journal.added("s" + i, user);
+            if (i % 10 != 0) {
+                sessions.remove("s" + i);
+                journal.removed("s" + i);
+            }
+        }
+        assertTrue(compacted.await(10, TimeUnit.SECONDS));
+        journal.flush();
+
+        assertTrue(Files.readAllLines(journalFile().toPath()).size() < 2850); //Lines written before the compaction are gone
+        assertTrue(loadSnapshot().size() > 0);
+        Map<String, User> loaded = replay();
+        assertEquals(sessions, loaded);
+        assertEquals(150, loaded.size());
+    }
+}
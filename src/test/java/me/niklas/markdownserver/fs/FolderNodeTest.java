@@ -0,0 +1,86 @@
+package me.niklas.markdownserver.fs;
+
+import me.niklas.markdownserver.MarkdownFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class FolderNodeTest {
+
+    @TempDir
+    File root;
+
+    private MarkdownFile file(String name) {
+        return new MarkdownFile(new File(root, name), root);
+    }
+
+    private static List<String> urls(FolderNode node) {
+        return node.getOverview().stream().map(MarkdownFile::getUrl).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    void buildGroupsByFolder() {
+        FolderNode tree = FolderNode.build("/", Arrays.asList(file("a.md"), file("x/b.md"), file("x/y/c.md")));
+
+        assertEquals(Arrays.asList("/a", "/x/b", "/x/y/c"), urls(tree));
+        assertEquals(Arrays.asList("/x/b", "/x/y/c"), urls(tree.find("/x")));
+        assertEquals(Collections.singletonList("/x/y/c"), urls(tree.find("/x/y")));
+        assertNull(tree.find("/z"));
+        assertNull(tree.find("/x/y/c/d"));
+    }
+
+    @Test
+    void withCopiesOnlyThePath() {
+        FolderNode tree = FolderNode.build("/", Arrays.asList(file("a.md"), file("x/b.md"), file("x/y/c.md"), file("z/e.md")));
+        FolderNode changed = tree.with(Collections.singletonList(file("x/d.md")));
+
+        assertEquals(Arrays.asList("/x/b", "/x/d", "/x/y/c"), urls(changed.find("/x")));
+        assertEquals(Arrays.asList("/x/b", "/x/y/c"), urls(tree.find("/x"))); //The old version does not change
+        assertSame(tree.find("/x/y"), changed.find("/x/y"));
+        assertSame(tree.find("/z"), changed.find("/z"));
+        assertSame(tree, tree.with(Collections.emptyList()));
+    }
+
+    @Test
+    void withCreatesNewFolders() {
+        FolderNode tree = FolderNode.build("/", Collections.singletonList(file("a.md")));
+        FolderNode changed = tree.with(Collections.singletonList(file("n/m/f.md")));
+
+        assertEquals(Collections.singletonList("/n/m/f"), urls(changed.find("/n/m")));
+        assertEquals(Arrays.asList("/a", "/n/m/f"), urls(changed));
+    }
+
+    @Test
+    void withoutDropsEmptyFolders() {
+        MarkdownFile b = file("x/b.md");
+        MarkdownFile c = file("x/y/c.md");
+        FolderNode tree = FolderNode.build("/", Arrays.asList(file("a.md"), b, c, file("z/e.md")));
+
+        FolderNode changed = tree.without(Collections.singleton(c));
+        assertNull(changed.find("/x/y"));
+        assertEquals(Collections.singletonList("/x/b"), urls(changed.find("/x")));
+        assertSame(tree.find("/z"), changed.find("/z"));
+
+        FolderNode folderDeleted = tree.without(new HashSet<>(Arrays.asList(b, c)));
+        assertNull(folderDeleted.find("/x"));
+        assertEquals(Arrays.asList("/a", "/z/e"), urls(folderDeleted));
+    }
+
+    @Test
+    void withoutUnknownFilesKeepsTheNode() {
+        FolderNode tree = FolderNode.build("/", Arrays.asList(file("a.md"), file("x/b.md")));
+
+        assertSame(tree, tree.without(Collections.singleton(file("x/b.md")))); //Another version of the same path
+        assertNull(tree.without(new HashSet<>(tree.getOverview())));
+    }
+}
@@ -0,0 +1,56 @@
+package me.niklas.markdownserver.fs;
+
+import me.niklas.markdownserver.MarkdownFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SearchIndexTest {
+
+    @TempDir
+    File root;
+
+    private MarkdownFile write(String name, String content) throws IOException {
+        File file = new File(root, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return new MarkdownFile(file, root);
+    }
+
+    @Test
+    void reindexingKeepsTheScore() throws IOException {
+        List<MarkdownFile> files = new ArrayList<>();
+        files.add(write("d0.md", "# Tiere\nEin zebra und ein pferd"));
+        for (int i = 1; i < 5; i++) files.add(write("d" + i + ".md", "# Dokument " + i + "\nEin pferd und ein hund"));
+        SearchIndex index = SearchIndex.build(files);
+        float before = index.search("zebra", 0, 10).getHits().get(0).getScore();
+
+        for (int i = 0; i < 20; i++) index.add(new MarkdownFile(files.get(0).getFile(), root)); //Every save replaces the document
+
+        SearchIndex.Result result = index.search("zebra", 0, 10);
+        assertEquals(1, result.getTotal());
+        assertEquals(before, result.getHits().get(0).getScore(), 1e-6);
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    void removedDocumentsAreNotCounted() throws IOException {
+        MarkdownFile zebra = write("a.md", "zebra");
+        SearchIndex index = SearchIndex.build(Arrays.asList(zebra, write("b.md", "pferd"), write("c.md", "hund")));
+        float before = index.search("zebra", 0, 10).getHits().get(0).getScore();
+
+        MarkdownFile other = write("d.md", "zebra");
+        index.add(other);
+        index.remove(other);
+
+        assertEquals(before, index.search("zebra", 0, 10).getHits().get(0).getScore(), 1e-6);
+    }
+}
@@ -0,0 +1,88 @@
+package me.niklas.markdownserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class GzipSegmentTest {
+
+    private static byte[] write(GzipSegment... segments) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GzipSegment.write(out, segments);
+        assertEquals(GzipSegment.size(segments), out.size());
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) { //Checks the CRC and the length of the trailer
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    void splicedSegmentsFormOneStream() throws IOException {
+        byte[] head = "<html><head><title>".getBytes(StandardCharsets.UTF_8);
+        byte[] title = "Übersicht".getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[200_000];
+        Random random = new Random(42);
+        for (int i = 0; i < body.length; i++) body[i] = (byte) ('a' + random.nextInt(8));
+
+        byte[] gzip = write(GzipSegment.compress(head), GzipSegment.stored(title), GzipSegment.compress(body));
+
+        assertArrayEquals(concat(head, title, body), gunzip(gzip));
+    }
+
+    @Test
+    void segmentsCanBeReusedInAnyOrder() throws IOException {
+        GzipSegment a = GzipSegment.compress("erster Teil ");
+        GzipSegment b = GzipSegment.compress("zweiter Teil ");
+
+        assertArrayEquals("zweiter Teil erster Teil zweiter Teil ".getBytes(StandardCharsets.UTF_8), gunzip(write(b, a, b)));
+        assertArrayEquals("erster Teil zweiter Teil ".getBytes(StandardCharsets.UTF_8), gunzip(write(a, b)));
+    }
+
+    @Test
+    void largeStoredSegmentIsSplitIntoBlocks() throws IOException {
+        byte[] data = new byte[65535 * 2 + 10];
+        Arrays.fill(data, (byte) 'x');
+
+        assertArrayEquals(concat(data, data), gunzip(write(GzipSegment.stored(data), GzipSegment.compress(data))));
+    }
+
+    @Test
+    void emptySegmentsAreValid() throws IOException {
+        byte[] text = "Text".getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(text, gunzip(write(GzipSegment.compress(new byte[0]), GzipSegment.stored((String) null), GzipSegment.compress(text))));
+        assertEquals(0, gunzip(write()).length);
+    }
+
+    @Test
+    void offHeapSegmentWritesTheSameBytes() throws IOException {
+        GzipSegment segment = GzipSegment.compress("Inhalt der Seite, ein wenig länger als ein paar Zeichen");
+        GzipSegment title = GzipSegment.stored("Titel");
+
+        assertArrayEquals(write(title, segment), write(title, segment.offHeap()));
+        assertEquals(segment.getCompressedSize(), segment.offHeap().getCompressedSize());
+    }
+}